@@ -25,6 +25,10 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -33,13 +37,25 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 public class AndroidUtils {
 
     private static final int DEFAULT_BUFFER_SIZE = 8192;
 
+    /** Maximum number of bytes held by the shared buffer pool */
+    private static final int BUFFER_POOL_SIZE = 64 * 1024;
+
+    /** Maximum number of bytes moved by a single channel transfer */
+    private static final long TRANSFER_CHUNK_SIZE = 64 * 1024;
+
+    /** Expected lengths above this are not trusted for pre-sizing */
+    private static final int MAX_PRESIZE_LENGTH = 8 * 1024 * 1024;
+
+    private static final ByteArrayPool sBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
+
     public static boolean isJellyBeanOrHigher() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
     }
@@ -104,6 +120,23 @@ public class AndroidUtils {
         return false;
     }
 
+    /**
+     * Whether the active network may cause monetary cost for the user. Prior
+     * to Jelly Bean any connection other than WiFi is assumed to be metered.
+     * 
+     * @param context
+     * @return
+     */
+    @TargetApi(16)
+    public static boolean isNetworkMetered(Context context) {
+        if (isJellyBeanOrHigher()) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+            return connectivityManager.isActiveNetworkMetered();
+        }
+        return !isWifiConnected(context);
+    }
+
     /**
      * Copies the contents of one file to the other using {@link FileChannel}s.
      * 
@@ -113,28 +146,22 @@ public class AndroidUtils {
      */
     public static void copyFile(File src, File dst) throws IOException {
         FileInputStream in = new FileInputStream(src);
-        FileOutputStream out = new FileOutputStream(dst);
-        FileChannel inChannel = in.getChannel();
-        FileChannel outChannel = out.getChannel();
-
         try {
-            inChannel.transferTo(0, inChannel.size(), outChannel);
-        } finally {
-            if (inChannel != null) {
-                inChannel.close();
-            }
-            if (outChannel != null) {
-                outChannel.close();
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                FileChannel inChannel = in.getChannel();
+                inChannel.transferTo(0, inChannel.size(), out.getChannel());
+            } finally {
+                out.close();
             }
+        } finally {
+            in.close();
         }
-
-        in.close();
-        out.close();
     }
 
     /**
-     * Copies data from one input stream to the other using a buffer of 8
-     * kilobyte in size.
+     * Copies data from one input stream to the other using a pooled buffer of
+     * 8 kilobyte in size.
      * 
      * @param input {@link InputStream}
      * @param output {@link OutputStream}
@@ -142,14 +169,113 @@ public class AndroidUtils {
      * @throws IOException
      */
     public static int copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+        byte[] buffer = sBufferPool.getBuf(DEFAULT_BUFFER_SIZE);
+        try {
+            int count = 0;
+            int n = 0;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            sBufferPool.returnBuf(buffer);
         }
-        return count;
+    }
+
+    /**
+     * Copies data from an input stream to a file using
+     * {@link FileChannel#transferFrom}, so file targets are written without an
+     * extra copy through a Java buffer. Input streams of files are transferred
+     * channel to channel. Does not close the input stream.
+     * 
+     * @param input {@link InputStream}
+     * @param dst destination {@link File}, overwritten if it exists
+     * @return Number of bytes copied.
+     * @throws IOException
+     */
+    public static long copy(InputStream input, File dst) throws IOException {
+        ReadableByteChannel inChannel = input instanceof FileInputStream ? ((FileInputStream) input)
+                .getChannel() : Channels.newChannel(input);
+        FileOutputStream out = new FileOutputStream(dst);
+        try {
+            FileChannel outChannel = out.getChannel();
+            long count = 0;
+            long n;
+            // a blocking channel only transfers no bytes at the end of stream
+            while ((n = outChannel.transferFrom(inChannel, count, TRANSFER_CHUNK_SIZE)) > 0) {
+                count += n;
+            }
+            return count;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads an input stream into a byte array. If the expected length is
+     * known, for example from a Content-Length header, the array is allocated
+     * at that size up front instead of growing while reading. The expected
+     * length is only a hint, streams of any length are read completely. Does
+     * not close the input stream.
+     * 
+     * @param input {@link InputStream}
+     * @param expectedLength Expected number of bytes, or -1 if unknown.
+     * @return
+     * @throws IOException
+     */
+    public static byte[] toByteArray(InputStream input, int expectedLength) throws IOException {
+        if (expectedLength > 0 && expectedLength <= MAX_PRESIZE_LENGTH) {
+            byte[] data = new byte[expectedLength];
+            int count = 0;
+            int n = 0;
+            while (count < expectedLength
+                    && -1 != (n = input.read(data, count, expectedLength - count))) {
+                count += n;
+            }
+            if (count < expectedLength) {
+                // stream was shorter than announced
+                byte[] truncated = new byte[count];
+                System.arraycopy(data, 0, truncated, 0, count);
+                return truncated;
+            }
+            int next = input.read();
+            if (next == -1) {
+                return data;
+            }
+            // stream is longer than announced, read the remainder
+            ByteArrayOutputStream output = new ByteArrayOutputStream(expectedLength * 2);
+            output.write(data, 0, count);
+            output.write(next);
+            copy(input, output);
+            return output.toByteArray();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE);
+        copy(input, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Closes the given {@link Closeable}, ignoring any {@link IOException}.
+     * Does nothing if it is null.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the pool of byte buffers shared by the stream helpers of this
+     * class. Callers may borrow buffers from it, too.
+     */
+    public static ByteArrayPool getBufferPool() {
+        return sBufferPool;
     }
 
     /**
@@ -173,32 +299,25 @@ public class AndroidUtils {
 
     /**
      * Returns an {@link InputStream} using {@link HttpURLConnection} to connect
-     * to the given URL.
+     * to the given URL. Close it once done, so the connection can be reused.
+     * 
+     * @see HttpTransport#get(String, RequestClass)
      */
     public static InputStream downloadUrl(String urlString) throws IOException {
-        HttpURLConnection conn = buildHttpUrlConnection(urlString);
-        conn.connect();
-
-        InputStream stream = conn.getInputStream();
-        return stream;
+        return HttpTransport.getInstance().get(urlString, RequestClass.API);
     }
 
     /**
      * Returns an {@link HttpURLConnection} using sensible default settings for
-     * mobile and taking care of buggy behavior prior to Froyo.
+     * mobile and taking care of buggy behavior prior to Froyo. Read the
+     * response through
+     * {@link HttpTransport#getInputStream(HttpURLConnection, RequestClass)}
+     * with {@link RequestClass#API} to get it decompressed and the connection
+     * reused.
      */
     public static HttpURLConnection buildHttpUrlConnection(String urlString)
             throws MalformedURLException, IOException {
-        AndroidUtils.disableConnectionReuseIfNecessary();
-
-        URL url = new URL(urlString);
-
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(10000 /* milliseconds */);
-        conn.setConnectTimeout(15000 /* milliseconds */);
-        conn.setDoInput(true);
-        conn.setRequestMethod("GET");
-        return conn;
+        return HttpTransport.getInstance().open(urlString, RequestClass.API);
     }
 
     /**
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.androidutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pool of byte arrays to avoid allocating a new buffer for every stream
+ * copy, which causes garbage collection pauses on older devices. Buffers are
+ * handed out with {@link #getBuf(int)} and should be given back with
+ * {@link #returnBuf(byte[])} once no longer used. The pool holds at most the
+ * given number of bytes, least recently returned buffers are dropped first.
+ * Thread-safe.
+ */
+public class ByteArrayPool {
+
+    /** Buffers by last use, least recently returned first */
+    private final LinkedList<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
+
+    /** The same buffers ordered by size, smallest first */
+    private final List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+
+    private final int mSizeLimit;
+
+    private int mCurrentSize = 0;
+
+    private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length - rhs.length;
+        }
+    };
+
+    /**
+     * @param sizeLimit Maximum number of bytes held by the pool.
+     */
+    public ByteArrayPool(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+    }
+
+    /**
+     * Returns a buffer from the pool which is at least the given length, or
+     * allocates a new one if there is none.
+     */
+    public synchronized byte[] getBuf(int length) {
+        for (int i = 0; i < mBuffersBySize.size(); i++) {
+            byte[] buf = mBuffersBySize.get(i);
+            if (buf.length >= length) {
+                mCurrentSize -= buf.length;
+                mBuffersBySize.remove(i);
+                mBuffersByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must not be used afterwards. Buffers
+     * larger than the pool size limit are dropped.
+     */
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mSizeLimit) {
+            return;
+        }
+        mBuffersByLastUse.add(buf);
+        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        mBuffersBySize.add(pos, buf);
+        mCurrentSize += buf.length;
+        trim();
+    }
+
+    /**
+     * Drops all pooled buffers, for example when memory is low.
+     */
+    public synchronized void clear() {
+        mBuffersByLastUse.clear();
+        mBuffersBySize.clear();
+        mCurrentSize = 0;
+    }
+
+    private void trim() {
+        while (mCurrentSize > mSizeLimit) {
+            byte[] buf = mBuffersByLastUse.removeFirst();
+            mBuffersBySize.remove(buf);
+            mCurrentSize -= buf.length;
+        }
+    }
+
+}
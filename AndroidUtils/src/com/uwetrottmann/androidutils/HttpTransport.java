@@ -0,0 +1,383 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.androidutils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens all {@link HttpURLConnection}s of the app, so image and API traffic
+ * share the same settings and can reuse pooled keep-alive connections.
+ * <p>
+ * A connection only goes back to the pool once its response body was read
+ * completely and the stream was closed. Streams returned by
+ * {@link #getInputStream(HttpURLConnection, RequestClass)} take care of this:
+ * on close they drain small remainders of the body instead of discarding the
+ * connection.
+ * <p>
+ * Besides the shared instance, separate instances with their own statistics
+ * can be created, for example to run against a local HTTP server in tests.
+ * The pool itself is the one of {@link HttpURLConnection}, shared by all
+ * instances and keeping up to 5 idle connections per host by default.
+ */
+public class HttpTransport {
+
+    /**
+     * Kinds of requests with their own timeouts and encoding.
+     */
+    public enum RequestClass {
+        /** Small JSON or XML responses, compressed with gzip */
+        API(15000, 10000, true),
+        /** Images, already compressed so asked for without encoding */
+        IMAGE(15000, 20000, false);
+
+        public final int connectTimeout;
+
+        public final int readTimeout;
+
+        public final boolean isGzip;
+
+        private RequestClass(int connectTimeout, int readTimeout, boolean isGzip) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.isGzip = isGzip;
+        }
+    }
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String ENCODING_GZIP = "gzip";
+
+    private static final String ENCODING_IDENTITY = "identity";
+
+    /** Unread bytes up to this are drained on close to keep the connection */
+    private static final int DRAIN_LIMIT = 16 * 1024;
+
+    /**
+     * Connects faster than this are estimated to have used a pooled
+     * connection, a new one takes at least a round trip.
+     */
+    private static final long POOLED_CONNECT_THRESHOLD = 10;
+
+    private static HttpTransport _instance;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private final AtomicInteger mEstimatedPooledConnects = new AtomicInteger();
+
+    private final AtomicLong mConnectTime = new AtomicLong();
+
+    private final AtomicInteger mGzipResponses = new AtomicInteger();
+
+    private final AtomicInteger mReusable = new AtomicInteger();
+
+    private final AtomicInteger mDiscarded = new AtomicInteger();
+
+    /** Bytes received per {@link RequestClass}, as sent, so compressed */
+    private final AtomicLong[] mReceivedBytes = new AtomicLong[RequestClass.values().length];
+
+    /**
+     * Creates a transport with its own statistics. Use {@link #getInstance()}
+     * in the app, so all requests are counted together.
+     */
+    public HttpTransport() {
+        for (int i = 0; i < mReceivedBytes.length; i++) {
+            mReceivedBytes[i] = new AtomicLong();
+        }
+    }
+
+    public static synchronized HttpTransport getInstance() {
+        if (_instance == null) {
+            _instance = new HttpTransport();
+            // HTTP connection reuse was buggy pre-froyo
+            AndroidUtils.disableConnectionReuseIfNecessary();
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns an unconnected GET {@link HttpURLConnection} set up for the
+     * given request class. Read its body through
+     * {@link #getInputStream(HttpURLConnection, RequestClass)}, or
+     * {@link #connect} first
+     * to check the response code.
+     */
+    public HttpURLConnection open(String urlString, RequestClass requestClass)
+            throws IOException {
+        URL url = new URL(urlString);
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(requestClass.connectTimeout);
+        conn.setReadTimeout(requestClass.readTimeout);
+        conn.setDoInput(true);
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty(HEADER_ACCEPT_ENCODING, requestClass.isGzip ? ENCODING_GZIP
+                : ENCODING_IDENTITY);
+        return conn;
+    }
+
+    /**
+     * Connects and returns the response body of the given URL. Close the
+     * stream once done, so the connection can be reused.
+     */
+    public InputStream get(String urlString, RequestClass requestClass) throws IOException {
+        return getInputStream(open(urlString, requestClass), requestClass);
+    }
+
+    /**
+     * Connects and returns the response body, decompressed if it is gzip
+     * encoded. Closing the stream releases the connection to the pool if
+     * possible. Throws if the response is an error.
+     */
+    public InputStream getInputStream(HttpURLConnection conn, RequestClass requestClass)
+            throws IOException {
+        connect(conn);
+        return getBody(conn, requestClass);
+    }
+
+    /**
+     * Connects and returns the response code. Call this before anything else
+     * which connects, like {@link HttpURLConnection#getResponseCode()}, so
+     * the request is counted.
+     */
+    public int connect(HttpURLConnection conn) throws IOException {
+        return connect(conn, null, null);
+    }
+
+    /**
+     * Connects, sends the given body and returns the response code. Set the
+     * request method before.
+     *
+     * @param body Sent UTF-8 encoded, may be null to send none.
+     * @param contentType Content type of the body, may be null.
+     */
+    public int connect(HttpURLConnection conn, String body, String contentType)
+            throws IOException {
+        mRequests.incrementAndGet();
+
+        final long start = System.currentTimeMillis();
+        if (body != null) {
+            if (contentType != null) {
+                conn.setRequestProperty("Content-Type", contentType);
+            }
+            final byte[] bytes = body.getBytes("UTF-8");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(bytes.length);
+            // connects, count that as connect time
+            final OutputStream out = conn.getOutputStream();
+            recordConnectTime(System.currentTimeMillis() - start);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } else {
+            conn.connect();
+            recordConnectTime(System.currentTimeMillis() - start);
+        }
+        return conn.getResponseCode();
+    }
+
+    private void recordConnectTime(long connectTime) {
+        mConnectTime.addAndGet(connectTime);
+        if (connectTime < POOLED_CONNECT_THRESHOLD) {
+            mEstimatedPooledConnects.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the body of a successful response of a connected connection,
+     * decompressed if it is gzip encoded. Closing the stream releases the
+     * connection to the pool if possible.
+     *
+     * @param requestClass The class the connection was opened with, its
+     *            received bytes are counted.
+     */
+    public InputStream getBody(HttpURLConnection conn, RequestClass requestClass)
+            throws IOException {
+        return wrap(conn, conn.getInputStream(), requestClass);
+    }
+
+    /**
+     * Like {@link #getBody(HttpURLConnection, RequestClass)} for error
+     * responses. Returns null if there is no body.
+     */
+    public InputStream getErrorBody(HttpURLConnection conn, RequestClass requestClass)
+            throws IOException {
+        final InputStream in = conn.getErrorStream();
+        return in == null ? null : wrap(conn, in, requestClass);
+    }
+
+    private InputStream wrap(HttpURLConnection conn, InputStream body,
+            RequestClass requestClass) throws IOException {
+        InputStream in = new ReleasingInputStream(body, mReceivedBytes[requestClass.ordinal()]);
+        if (ENCODING_GZIP.equalsIgnoreCase(conn.getContentEncoding())) {
+            mGzipResponses.incrementAndGet();
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * Number of body bytes received for requests of the given class, as
+     * sent, so before decompressing. Includes bytes drained on close.
+     */
+    public long getReceivedBytes(RequestClass requestClass) {
+        return mReceivedBytes[requestClass.ordinal()].get();
+    }
+
+    public int getGzipResponseCount() {
+        return mGzipResponses.get();
+    }
+
+    /**
+     * Estimated number of connects which reused a pooled connection, counting
+     * those taking less than 10 ms. {@link HttpURLConnection} does not tell if
+     * it did, so this is a guess that also counts fast new connections on a
+     * local network.
+     */
+    public int getEstimatedPooledConnectCount() {
+        return mEstimatedPooledConnects.get();
+    }
+
+    /**
+     * Number of responses after which the connection could go back to the
+     * pool, because the body was read completely.
+     */
+    public int getReusableCount() {
+        return mReusable.get();
+    }
+
+    /**
+     * Number of responses closed with unread data, their connections were
+     * discarded.
+     */
+    public int getDiscardedCount() {
+        return mDiscarded.get();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        int requests = getRequestCount();
+        writer.print(prefix);
+        writer.println("HttpTransport stats:");
+        writer.print(prefix);
+        writer.println("  Requests: " + requests + " (" + getGzipResponseCount() + " gzip)");
+        writer.print(prefix);
+        writer.println("  Pooled connects (estimate, connect under " + POOLED_CONNECT_THRESHOLD
+                + " ms): " + getEstimatedPooledConnectCount() + ", avg connect "
+                + (requests == 0 ? 0 : mConnectTime.get() / requests) + " ms");
+        writer.print(prefix);
+        writer.println("  Released for reuse: " + getReusableCount() + ", discarded: "
+                + getDiscardedCount());
+        for (RequestClass requestClass : RequestClass.values()) {
+            writer.print(prefix);
+            writer.println("  " + requestClass + " bytes received: "
+                    + getReceivedBytes(requestClass));
+        }
+    }
+
+    /**
+     * Records whether the body was read completely when closed. Drains small
+     * remainders, so the connection can still be reused.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+
+        private boolean mIsExhausted;
+
+        private boolean mIsClosed;
+
+        private final AtomicLong mReceivedBytes;
+
+        public ReleasingInputStream(InputStream in, AtomicLong receivedBytes) {
+            super(in);
+            mReceivedBytes = receivedBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                mIsExhausted = true;
+            } else {
+                mReceivedBytes.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1) {
+                mIsExhausted = true;
+            } else {
+                mReceivedBytes.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+            try {
+                if (!mIsExhausted) {
+                    drain();
+                }
+            } finally {
+                if (mIsExhausted) {
+                    mReusable.incrementAndGet();
+                } else {
+                    mDiscarded.incrementAndGet();
+                }
+                super.close();
+            }
+        }
+
+        private void drain() {
+            final ByteArrayPool pool = AndroidUtils.getBufferPool();
+            final byte[] buffer = pool.getBuf(DRAIN_LIMIT);
+            try {
+                int drained = 0;
+                int n;
+                while (drained < DRAIN_LIMIT
+                        && (n = read(buffer, 0, DRAIN_LIMIT - drained)) != -1) {
+                    drained += n;
+                }
+            } catch (IOException e) {
+                // connection is not reusable, closing it is all that is left
+            } finally {
+                pool.returnBuf(buffer);
+            }
+        }
+    }
+
+}
@@ -28,7 +28,10 @@ import com.jakewharton.trakt.enumerations.MediaType;
 import com.jakewharton.trakt.enumerations.Rating;
 import com.jakewharton.trakt.enumerations.RatingType;
 import com.jakewharton.trakt.util.Base64;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
@@ -65,6 +68,9 @@ public abstract class TraktApiService extends ApiService {
     /** Character set used for encoding and decoding transmitted values. */
     private static final Charset UTF_8_CHAR_SET = Charset.forName(ApiService.CONTENT_ENCODING);
 
+    /** HTTP get method name. */
+    private static final String HTTP_METHOD_GET = "GET";
+
     /** HTTP post method name. */
     private static final String HTTP_METHOD_POST = "POST";
 
@@ -153,6 +159,65 @@ public abstract class TraktApiService extends ApiService {
                 HttpURLConnection.HTTP_OK));
     }
 
+    /**
+     * Execute request using HTTP GET through the shared {@link HttpTransport}.
+     * 
+     * @param url URL to request.
+     * @param expectedStatus Response code of a successful request.
+     * @return Response body.
+     */
+    @Override
+    protected InputStream executeGet(String url, int expectedStatus) {
+        return this.executeMethod(url, null, null, HTTP_METHOD_GET, expectedStatus);
+    }
+
+    /**
+     * Execute request through the shared {@link HttpTransport}, so responses
+     * are gzip compressed, connections are reused and counted along with all
+     * other requests of the app.
+     * 
+     * @param url URL to request.
+     * @param body Request body, may be null.
+     * @param contentType Content type of the body, may be null.
+     * @param method HTTP method.
+     * @param expectedStatus Response code of a successful request.
+     * @return Response body.
+     */
+    @Override
+    protected InputStream executeMethod(String url, String body, String contentType,
+            String method, int expectedStatus) {
+        try {
+            final HttpTransport transport = HttpTransport.getInstance();
+            final HttpURLConnection conn = transport.open(url, RequestClass.API);
+            conn.setRequestMethod(method);
+            if (this.getConnectTimeout() > -1) {
+                conn.setConnectTimeout(this.getConnectTimeout());
+            }
+            if (this.getReadTimeout() > -1) {
+                conn.setReadTimeout(this.getReadTimeout());
+            }
+            for (String name : this.getRequestHeaderNames()) {
+                conn.setRequestProperty(name, this.getRequestHeader(name));
+            }
+
+            final int status = transport.connect(conn, body, contentType);
+            if (status != expectedStatus) {
+                final InputStream error = transport.getErrorBody(conn, RequestClass.API);
+                if (error == null) {
+                    throw new ApiException("Request failed with HTTP " + status);
+                }
+                try {
+                    throw new ApiException(ApiService.convertStreamToString(error));
+                } finally {
+                    ApiService.closeStream(error);
+                }
+            }
+            return transport.getBody(conn, RequestClass.API);
+        } catch (IOException e) {
+            throw new ApiException(e);
+        }
+    }
+
     /**
      * Set email and password to use for HTTP basic authentication.
      * 
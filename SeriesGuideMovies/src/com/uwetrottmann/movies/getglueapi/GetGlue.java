@@ -26,6 +26,8 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.getglueapi.GetGlueXmlParser.Interaction;
 
@@ -148,10 +150,8 @@ public class GetGlue {
 
             InputStream responseIn = null;
             try {
-                request.connect();
-
                 GetGlueXmlParser getGlueXmlParser = new GetGlueXmlParser();
-                responseIn = request.getInputStream();
+                responseIn = HttpTransport.getInstance().getInputStream(request, RequestClass.API);
 
                 int statuscode = request.getResponseCode();
                 if (statuscode == HttpURLConnection.HTTP_OK) {
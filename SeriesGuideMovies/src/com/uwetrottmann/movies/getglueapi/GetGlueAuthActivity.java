@@ -35,6 +35,8 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Window;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.ui.BaseActivity;
+import com.uwetrottmann.movies.util.TaskScheduler;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
 
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.OAuthProvider;
@@ -99,8 +101,11 @@ public class GetGlueAuthActivity extends BaseActivity {
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
                 if (url.startsWith(GetGlue.OAUTH_CALLBACK_URL)) {
                     Uri uri = Uri.parse(url);
-                    new RetrieveAccessTokenTask(mConsumer, mProvider,
-                            PreferenceManager.getDefaultSharedPreferences(activity)).execute(uri);
+                    TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                            new RetrieveAccessTokenTask(mConsumer, mProvider, PreferenceManager
+                                    .getDefaultSharedPreferences(activity)), new Uri[] {
+                                uri
+                            });
 
                     finish();
                     return true;
@@ -118,7 +123,8 @@ public class GetGlueAuthActivity extends BaseActivity {
                 GetGlue.AUTHORIZE_URL);
 
         Log.i(TAG, "Starting task to retrieve request token.");
-        new OAuthRequestTokenTask(this, mConsumer, mProvider, mWebview).execute();
+        TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                new OAuthRequestTokenTask(this, mConsumer, mProvider, mWebview), new Void[] {});
     }
 
     public class RetrieveAccessTokenTask extends AsyncTask<Uri, Void, Integer> {
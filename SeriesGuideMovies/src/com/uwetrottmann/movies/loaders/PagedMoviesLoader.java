@@ -0,0 +1,384 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.loaders;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads movies sorted by title page by page, using the keyset pagination of
+ * {@link Movies#buildPageUri}. Starts with one page, call
+ * {@link #loadNextPage()} when the user scrolls close to the end of the list
+ * to append the next one, {@link #loadPreviousPage()} close to the start to
+ * bring back pages dropped before.
+ * <p>
+ * At most {@link #MAX_PAGES} pages are kept, appending a page drops the first
+ * one. Only its anchor is remembered, so memory does not grow with the list.
+ * Use {@link #getWindowStart()} to keep the scroll position when the window
+ * moves. If the movies change, only the kept pages are queried again, each
+ * starting after the last movie of the page before.
+ * <p>
+ * The projection must contain {@link Movies#_ID} and {@link Movies#TITLE}.
+ * Filter with a selection backed by an index ending with the title, like the
+ * one of the watchlist flag.
+ */
+public class PagedMoviesLoader extends AsyncTaskLoader<Cursor> {
+
+    public static final int PAGE_SIZE = 50;
+
+    /** Maximum number of pages kept at once. */
+    public static final int MAX_PAGES = 4;
+
+    private static final int LOAD_ALL = 0;
+
+    private static final int LOAD_NEXT = 1;
+
+    private static final int LOAD_PREVIOUS = 2;
+
+    /** Anchor of the first page */
+    private static final Anchor FIRST = new Anchor(null, 0);
+
+    private final ForceLoadContentObserver mObserver;
+
+    private final String[] mProjection;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private boolean mIsObserving;
+
+    /** The delivered cursor, only accessed from the main thread */
+    private PagedCursor mCursor;
+
+    /** The cursor to build on, snapshot of the delivered cursor */
+    private volatile PagedCursor mBaseCursor;
+
+    private volatile int mLoadRequest = LOAD_ALL;
+
+    public PagedMoviesLoader(Context context, String[] projection, String selection,
+            String[] selectionArgs) {
+        super(context);
+        mObserver = new ForceLoadContentObserver();
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Loads the next page of movies, unless all are loaded or a page is
+     * already loading.
+     */
+    public void loadNextPage() {
+        if (mCursor == null || !mCursor.hasMore() || mLoadRequest != LOAD_ALL) {
+            return;
+        }
+        mLoadRequest = LOAD_NEXT;
+        mBaseCursor = mCursor;
+        forceLoad();
+    }
+
+    /**
+     * Loads the page before the first kept one, unless there is none or a
+     * page is already loading.
+     */
+    public void loadPreviousPage() {
+        if (mCursor == null || mCursor.mDroppedAnchors.isEmpty() || mLoadRequest != LOAD_ALL) {
+            return;
+        }
+        mLoadRequest = LOAD_PREVIOUS;
+        mBaseCursor = mCursor;
+        forceLoad();
+    }
+
+    /**
+     * Returns the position in the whole list of the first movie of the
+     * delivered cursor, the number of movies in dropped pages.
+     */
+    public int getWindowStart() {
+        return mCursor == null ? 0 : mCursor.mDroppedAnchors.size() * PAGE_SIZE;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final PagedCursor base = mBaseCursor;
+        final int request = mLoadRequest;
+        final ArrayList<Page> pages = new ArrayList<Page>();
+        final ArrayList<Anchor> droppedAnchors = new ArrayList<Anchor>();
+
+        if (base == null) {
+            // first load
+            return loadPages(pages, droppedAnchors, FIRST, 1);
+        }
+        droppedAnchors.addAll(base.mDroppedAnchors);
+
+        if (request == LOAD_NEXT) {
+            // only query the page after the last loaded movie
+            final List<Page> basePages = base.getPages();
+            pages.addAll(basePages);
+            final Page page = queryPage(basePages.get(basePages.size() - 1).mEnd);
+            if (page == null) {
+                return null;
+            }
+            pages.add(page);
+            if (pages.size() > MAX_PAGES) {
+                droppedAnchors.add(pages.remove(0).mStart);
+            }
+            return new PagedCursor(pages, droppedAnchors, page.isFull());
+        }
+
+        // query the kept pages again, one page more at the front if requested
+        Anchor start = base.getPages().get(0).mStart;
+        int pageCount = base.getPages().size();
+        if (request == LOAD_PREVIOUS && !droppedAnchors.isEmpty()) {
+            start = droppedAnchors.remove(droppedAnchors.size() - 1);
+            pageCount = Math.min(pageCount + 1, MAX_PAGES);
+        }
+        final PagedCursor cursor = loadPages(pages, droppedAnchors, start, pageCount);
+        if (cursor != null && cursor.getCount() == 0 && !droppedAnchors.isEmpty()) {
+            // all kept movies are gone, start over at the top
+            releasePages(cursor, null);
+            pages.clear();
+            droppedAnchors.clear();
+            return loadPages(pages, droppedAnchors, FIRST, 1);
+        }
+        return cursor;
+    }
+
+    /**
+     * Queries up to the given number of consecutive pages from the anchor on,
+     * stopping after the first page which is not full.
+     */
+    private PagedCursor loadPages(ArrayList<Page> pages, ArrayList<Anchor> droppedAnchors,
+            Anchor start, int pageCount) {
+        Anchor anchor = start;
+        boolean hasMore = true;
+        for (int i = 0; i < pageCount && hasMore; i++) {
+            final Page page = queryPage(anchor);
+            if (page == null) {
+                for (Page loaded : pages) {
+                    loaded.mCursor.close();
+                }
+                return null;
+            }
+            pages.add(page);
+            hasMore = page.isFull();
+            anchor = page.mEnd;
+        }
+        return new PagedCursor(pages, droppedAnchors, hasMore);
+    }
+
+    /**
+     * Queries the page after the anchor and fills its cursor window, so it
+     * is not filled on the main thread.
+     */
+    private Page queryPage(Anchor anchor) {
+        final Cursor cursor = getContext().getContentResolver().query(
+                Movies.buildPageUri(PAGE_SIZE, anchor.mTitle, anchor.mId), mProjection,
+                mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        final int count = cursor.getCount();
+
+        // remember the anchor of the next page before the page is shared
+        Anchor end = anchor;
+        if (cursor.moveToLast()) {
+            end = new Anchor(cursor.getString(cursor.getColumnIndexOrThrow(Movies.TITLE)),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(Movies._ID)));
+        }
+        return new Page(cursor, anchor, end, count == PAGE_SIZE);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        mLoadRequest = LOAD_ALL;
+        final PagedCursor pagedCursor = (PagedCursor) cursor;
+        if (isReset()) {
+            // An async query came in while the loader is stopped
+            releasePages(pagedCursor, null);
+            return;
+        }
+        final PagedCursor oldCursor = mCursor;
+        mCursor = pagedCursor;
+        mBaseCursor = pagedCursor;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        if (oldCursor != null && oldCursor != pagedCursor) {
+            releasePages(oldCursor, pagedCursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mIsObserving) {
+            // one observer for all pages, they are all movies
+            getContext().getContentResolver().registerContentObserver(Movies.CONTENT_URI,
+                    true, mObserver);
+            mIsObserving = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        // reload the kept pages, not just the next one
+        mLoadRequest = LOAD_ALL;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        mLoadRequest = LOAD_ALL;
+        releasePages((PagedCursor) cursor, mCursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mIsObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mIsObserving = false;
+        }
+        releasePages(mCursor, null);
+        mCursor = null;
+        mBaseCursor = null;
+    }
+
+    /**
+     * Closes all pages of the given cursor which are not part of the kept
+     * cursor. Pages are shared between the cursors of consecutive loads.
+     */
+    private static void releasePages(PagedCursor cursor, PagedCursor keep) {
+        if (cursor == null) {
+            return;
+        }
+        for (Page page : cursor.getPages()) {
+            if ((keep == null || !keep.getPages().contains(page)) && !page.mCursor.isClosed()) {
+                page.mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * Title and row id of the movie a page starts after.
+     */
+    private static class Anchor {
+
+        final String mTitle;
+
+        final long mId;
+
+        Anchor(String title, long id) {
+            mTitle = title;
+            mId = id;
+        }
+    }
+
+    /**
+     * A queried page with the anchors it starts after and the next page
+     * starts after.
+     */
+    private static class Page {
+
+        final Cursor mCursor;
+
+        final Anchor mStart;
+
+        final Anchor mEnd;
+
+        private final boolean mIsFull;
+
+        Page(Cursor cursor, Anchor start, Anchor end, boolean isFull) {
+            mCursor = cursor;
+            mStart = start;
+            mEnd = end;
+            mIsFull = isFull;
+        }
+
+        /**
+         * Whether there may be more movies after this page.
+         */
+        boolean isFull() {
+            return mIsFull;
+        }
+    }
+
+    /**
+     * Joins the kept pages into one cursor.
+     */
+    private static class PagedCursor extends MergeCursor {
+
+        private final List<Page> mPages;
+
+        private final boolean mHasMore;
+
+        /** Anchors of dropped pages, the last one is right before the first kept page */
+        final List<Anchor> mDroppedAnchors;
+
+        public PagedCursor(List<Page> pages, List<Anchor> droppedAnchors, boolean hasMore) {
+            super(toCursors(pages));
+            mPages = pages;
+            mDroppedAnchors = droppedAnchors;
+            mHasMore = hasMore;
+        }
+
+        private static Cursor[] toCursors(List<Page> pages) {
+            final Cursor[] cursors = new Cursor[pages.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = pages.get(i).mCursor;
+            }
+            return cursors;
+        }
+
+        public List<Page> getPages() {
+            return mPages;
+        }
+
+        /**
+         * Whether there may be more movies after the last page.
+         */
+        public boolean hasMore() {
+            return mHasMore;
+        }
+    }
+
+}
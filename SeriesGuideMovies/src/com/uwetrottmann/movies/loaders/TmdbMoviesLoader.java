@@ -17,38 +17,90 @@
 
 package com.uwetrottmann.movies.loaders;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
 import android.support.v4.content.AsyncTaskLoader;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.jakewharton.apibuilder.ApiException;
 import com.jakewharton.trakt.TraktException;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.provider.MoviesContract.TmdbListMovies;
+import com.uwetrottmann.movies.provider.MoviesContract.TmdbLists;
 import com.uwetrottmann.movies.ui.MoviesFragment.TmdbCategory;
+import com.uwetrottmann.movies.util.Lists;
 import com.uwetrottmann.movies.util.Utils;
 import com.uwetrottmann.tmdb.ServiceManager;
 import com.uwetrottmann.tmdb.entities.Movie;
 import com.uwetrottmann.tmdb.entities.ResultsPage;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
- * Loads a list of movies from TMDb.
+ * Loads a list of movies from TMDb. A cached copy of the list is delivered
+ * first, so it shows up instantly and also without network. If it is older
+ * than {@link TmdbLists#TTL} it is then fetched again in the background.
  */
 public class TmdbMoviesLoader extends AsyncTaskLoader<List<Movie>> {
 
     private static final String TAG = "TmdbMoviesLoader";
 
+    /** Only the first page of a category is loaded. */
+    private static final int PAGE = 1;
+
     private List<Movie> mData;
 
     private TmdbCategory mCategory;
 
+    private final Uri mListUri;
+
+    /** Whether the next load may deliver the cached list. */
+    private volatile boolean mIsCacheAllowed = true;
+
+    /** Whether the delivered list came from an expired cache. */
+    private volatile boolean mIsRefreshNeeded;
+
     public TmdbMoviesLoader(Context context, TmdbCategory category) {
         super(context);
         mCategory = category;
+        String language = Locale.getDefault().getLanguage();
+        if (TextUtils.isEmpty(language)) {
+            language = "en";
+        }
+        mListUri = TmdbLists.buildListUri(category.name(), PAGE, language);
     }
 
     @Override
     public List<Movie> loadInBackground() {
+        if (mIsCacheAllowed) {
+            mIsCacheAllowed = false;
+            final long[] fetched = new long[1];
+            final List<Movie> cached = readCache(fetched);
+            if (cached != null) {
+                mIsRefreshNeeded = System.currentTimeMillis() - fetched[0] > TmdbLists.TTL;
+                return cached;
+            }
+        }
+        mIsRefreshNeeded = false;
+
+        if (AndroidUtils.isNetworkConnected(getContext())) {
+            final List<Movie> movies = fetch();
+            if (movies != null) {
+                writeCache(movies);
+                return movies;
+            }
+        }
+
+        // offline or failed, fall back to the cached list no matter its age
+        return readCache(null);
+    }
+
+    private List<Movie> fetch() {
         ServiceManager manager = Utils.getTmdbServiceManager(getContext());
 
         try {
@@ -80,6 +132,60 @@ public class TmdbMoviesLoader extends AsyncTaskLoader<List<Movie>> {
         return null;
     }
 
+    /**
+     * Returns the cached list or null if there is none.
+     * 
+     * @param fetched If not null, receives the time the list was fetched.
+     */
+    private List<Movie> readCache(long[] fetched) {
+        final Cursor cursor = getContext().getContentResolver().query(mListUri,
+                CacheQuery.PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.getCount() == 0) {
+                return null;
+            }
+            final ArrayList<Movie> movies = Lists.newArrayList();
+            while (cursor.moveToNext()) {
+                Movie movie = new Movie();
+                movie.id = cursor.getInt(CacheQuery.TMDBID);
+                movie.title = cursor.getString(CacheQuery.TITLE);
+                movie.poster_path = cursor.getString(CacheQuery.POSTER);
+                movies.add(movie);
+            }
+            if (fetched != null) {
+                cursor.moveToFirst();
+                fetched[0] = cursor.getLong(CacheQuery.FETCHED);
+            }
+            return movies;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void writeCache(List<Movie> movies) {
+        final ArrayList<ContentValues> values = Lists.newArrayList();
+        for (Movie movie : movies) {
+            if (movie.id == null) {
+                continue;
+            }
+            ContentValues row = new ContentValues();
+            row.put(TmdbListMovies.TMDBID, movie.id);
+            row.put(TmdbListMovies.TITLE, movie.title);
+            row.put(TmdbListMovies.POSTER, movie.poster_path);
+            values.add(row);
+        }
+        try {
+            getContext().getContentResolver().bulkInsert(mListUri,
+                    values.toArray(new ContentValues[values.size()]));
+        } catch (RuntimeException e) {
+            // the fetched list is shown anyhow, it is just not cached
+            Log.w(TAG, "Failed to cache " + mListUri, e);
+        }
+    }
+
     /**
      * Called when there is new data to deliver to the client. The super class
      * will take care of delivering it; the implementation here just adds a
@@ -101,6 +207,14 @@ public class TmdbMoviesLoader extends AsyncTaskLoader<List<Movie>> {
             // If the Loader is currently started, we can immediately
             // deliver its results.
             super.deliverResult(data);
+
+            // the cached list is shown, now fetch a fresh one
+            if (mIsRefreshNeeded) {
+                mIsRefreshNeeded = false;
+                if (AndroidUtils.isNetworkConnected(getContext())) {
+                    forceLoad();
+                }
+            }
         }
 
         if (oldData != null) {
@@ -161,4 +275,20 @@ public class TmdbMoviesLoader extends AsyncTaskLoader<List<Movie>> {
         // For a simple List<> there is nothing to do. For something
         // like a Cursor, we would close it here.
     }
+
+    interface CacheQuery {
+
+        String[] PROJECTION = new String[] {
+                TmdbListMovies.TMDBID, TmdbListMovies.TITLE, TmdbListMovies.POSTER,
+                TmdbLists.FETCHED
+        };
+
+        int TMDBID = 0;
+
+        int TITLE = 1;
+
+        int POSTER = 2;
+
+        int FETCHED = 3;
+    }
 }
@@ -19,6 +19,7 @@ package com.uwetrottmann.movies.provider;
 
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.format.DateUtils;
 
 public class MoviesContract {
 
@@ -26,6 +27,18 @@ public class MoviesContract {
 
     static final String PATH_MOVIES = "movies";
 
+    static final String PATH_UPSERT = "upsert";
+
+    static final String PATH_GENRES = "genres";
+
+    static final String PATH_SEARCH = "search";
+
+    static final String PATH_SYNC = "sync";
+
+    static final String PATH_COMMIT = "commit";
+
+    static final String PATH_TMDB_LISTS = "tmdblists";
+
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
     interface MoviesColumns {
@@ -55,6 +68,10 @@ public class MoviesContract {
 
         String FANART = "movie_fanart";
 
+        /**
+         * Genre names separated by {@link Movies#GENRES_SEPARATOR}. Writing it
+         * through insert or bulkInsert also updates {@link Genres}.
+         */
         String GENRES = "movie_genres";
 
         String RATINGS_PERCENTAGE = "movie_ratepercentage";
@@ -66,18 +83,176 @@ public class MoviesContract {
         String INWATCHLIST = "movie_inwatchlist";
 
         String INCOLLECTION = "movie_incollecetion";
+
+        /** The rating the user gave the movie on trakt, null if not rated. */
+        String RATING = "movie_rating";
+
+        /** Hash of all synced values, to detect unchanged movies when syncing. */
+        String FINGERPRINT = "movie_fingerprint";
+
+        /** The last sync run which saw the movie, see {@link Movies#buildSyncUri}. */
+        String SYNC_GENERATION = "movie_syncgeneration";
+
+        /**
+         * Lists the movie is in as seen by the sync run of
+         * {@link #SYNC_GENERATION}, a combination of {@link Movies#SYNC_FLAG_WATCHED},
+         * {@link Movies#SYNC_FLAG_WATCHLIST} and {@link Movies#SYNC_FLAG_COLLECTION}.
+         */
+        String SYNC_FLAGS = "movie_syncflags";
+
+        /** The rating as seen by the sync run of {@link #SYNC_GENERATION}. */
+        String SYNC_RATING = "movie_syncrating";
+    }
+
+    interface MoviesSearchColumns {
+        String TITLE = "search_title";
+
+        String TAGLINE = "search_tagline";
+
+        String OVERVIEW = "search_overview";
+    }
+
+    interface GenresColumns {
+        String NAME = "genre_name";
+    }
+
+    interface MovieGenresColumns {
+        String TMDBID = "moviegenre_tmdbid";
+
+        String GENRE_ID = "moviegenre_genreid";
+    }
+
+    interface TmdbListsColumns {
+        /** Name of the TMDb category, for example "popular". */
+        String CATEGORY = "tmdblist_category";
+
+        String PAGE = "tmdblist_page";
+
+        /** ISO 639-1 code of the language the list was fetched in. */
+        String LANGUAGE = "tmdblist_language";
+
+        /** Time in milliseconds when the list was last fetched. */
+        String FETCHED = "tmdblist_fetched";
+    }
+
+    interface TmdbListMoviesColumns {
+        String LIST_ID = "tmdblistmovie_listid";
+
+        /** Position of the movie in its list, starting at 0. */
+        String POSITION = "tmdblistmovie_position";
+
+        String TMDBID = "tmdblistmovie_tmdbid";
+
+        String TITLE = "tmdblistmovie_title";
+
+        String POSTER = "tmdblistmovie_poster";
     }
 
     public static class Movies implements MoviesColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_MOVIES)
                 .build();
 
+        /**
+         * Use with {@link android.content.ContentResolver#bulkInsert} to insert
+         * movies or update existing ones with the same TMDb id in place. Rows
+         * should contain all columns, missing ones are set to NULL.
+         */
+        public static final Uri CONTENT_URI_UPSERT = CONTENT_URI.buildUpon()
+                .appendPath(PATH_UPSERT).build();
+
         /** Use if multiple items get returned */
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.sgmovies.movie";
 
         /** Use if a single item is returned */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.sgmovies.movie";
 
+        public static final String GENRES_SEPARATOR = "|";
+
+        public static final int SYNC_FLAG_WATCHED = 1;
+
+        public static final int SYNC_FLAG_WATCHLIST = 2;
+
+        public static final int SYNC_FLAG_COLLECTION = 4;
+
+        /** Maximum number of movies in a page, see {@link #buildPageUri}. */
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        /** Title of the last movie of the previous page. */
+        public static final String QUERY_PARAM_AFTER_TITLE = "after_title";
+
+        /** Row id of the last movie of the previous page. */
+        public static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+        /**
+         * Returns the {@link Uri} of a page of movies sorted by title, then row
+         * id. Any sort order passed to the query is ignored. Pages are found
+         * through the index on the title, so a page loads equally fast no
+         * matter how far down the list it is.
+         * 
+         * @param afterTitle Title of the last movie of the previous page, null
+         *            to get the first page.
+         * @param afterId Row id of the last movie of the previous page.
+         */
+        public static Uri buildPageUri(int limit, String afterTitle, long afterId) {
+            final Uri.Builder builder = CONTENT_URI.buildUpon().appendQueryParameter(
+                    QUERY_PARAM_LIMIT, String.valueOf(limit));
+            if (afterTitle != null) {
+                builder.appendQueryParameter(QUERY_PARAM_AFTER_TITLE, afterTitle)
+                        .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /** The text to search for, see {@link #buildSearchUri}. */
+        public static final String QUERY_PARAM_QUERY = "q";
+
+        /** Set to "true" to also match words starting with the search terms. */
+        public static final String QUERY_PARAM_PREFIX = "prefix";
+
+        /**
+         * Returns the {@link Uri} to search title, tagline and overview of all
+         * movies. Results matching in the title come first. All search terms
+         * have to match.
+         * 
+         * @param isPrefix Whether to match words starting with the search
+         *            terms, useful to search as the user types.
+         */
+        public static Uri buildSearchUri(String query, boolean isPrefix) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAM_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAM_PREFIX, String.valueOf(isPrefix)).build();
+        }
+
+        /**
+         * Use with {@link android.content.ContentResolver#update} to record
+         * that a sync run saw the selected movies in the lists given by
+         * {@link #SYNC_FLAGS} and, if the values contain it, with the
+         * {@link #SYNC_RATING}. Lists recorded by earlier updates of the same
+         * run are kept. Leaves the list flags alone and does not notify
+         * observers, commit through {@link #buildSyncCommitUri} once done.
+         * 
+         * @param generation Identifies the sync run, larger than the
+         *            {@link #SYNC_GENERATION} of any earlier run.
+         */
+        public static Uri buildSyncUri(long generation) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SYNC)
+                    .appendPath(String.valueOf(generation)).build();
+        }
+
+        /**
+         * Use with {@link android.content.ContentResolver#update} to copy the
+         * lists and rating recorded by a sync run to the list flags of all
+         * movies it saw. Values and selection are ignored. Returns the number
+         * of movies whose flags changed.
+         */
+        public static Uri buildSyncCommitUri(long generation) {
+            return buildSyncUri(generation).buildUpon().appendPath(PATH_COMMIT).build();
+        }
+
+        public static String getSyncGeneration(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
         public static Uri buildMovieUri(long movieId) {
             return CONTENT_URI.buildUpon().appendPath(String.valueOf(movieId)).build();
         }
@@ -87,6 +262,79 @@ public class MoviesContract {
         }
     }
 
+    public static class Genres implements GenresColumns, BaseColumns {
+        /** Lists all genres with at least one movie and their movie count. */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_GENRES)
+                .build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.sgmovies.genre";
+
+        /** Number of movies in a genre, only available when querying genres. */
+        public static final String COUNT = "genre_count";
+
+        /**
+         * Returns the {@link Uri} to list all movies of a genre. Supports the
+         * columns of {@link Movies}.
+         */
+        public static Uri buildMoviesUri(long genreId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(genreId))
+                    .appendPath(PATH_MOVIES).build();
+        }
+
+        public static String getId(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /**
+     * Cached pages of TMDb movie lists, so they can be shown without waiting
+     * for the network. Only the most recently fetched lists are kept.
+     */
+    public static class TmdbLists implements TmdbListsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_TMDB_LISTS).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.sgmovies.tmdblist";
+
+        /** Cached lists older than this should be fetched again. */
+        public static final long TTL = 6 * DateUtils.HOUR_IN_MILLIS;
+
+        /**
+         * Returns the {@link Uri} of the movies of a cached list, sorted by
+         * their position. Supports the columns of {@link TmdbListMovies} and
+         * {@link TmdbLists#FETCHED}. Use with
+         * {@link android.content.ContentResolver#bulkInsert} to replace the
+         * movies of the list and mark it as just fetched.
+         */
+        public static Uri buildListUri(String category, int page, String language) {
+            return CONTENT_URI.buildUpon().appendPath(category).appendPath(language)
+                    .appendPath(String.valueOf(page)).build();
+        }
+
+        public static String getCategory(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getLanguage(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static String getPage(Uri uri) {
+            return uri.getPathSegments().get(3);
+        }
+    }
+
+    public static class TmdbListMovies implements TmdbListMoviesColumns, BaseColumns {
+    }
+
+    static class MovieGenres implements MovieGenresColumns {
+    }
+
+    static class MoviesSearch implements MoviesSearchColumns {
+    }
+
     private MoviesContract() {
     }
 
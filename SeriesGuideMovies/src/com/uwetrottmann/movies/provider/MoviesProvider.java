@@ -17,6 +17,7 @@
 
 package com.uwetrottmann.movies.provider;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -25,16 +26,29 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.provider.MoviesContract.Genres;
+import com.uwetrottmann.movies.provider.MoviesContract.MovieGenres;
 import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.provider.MoviesContract.MoviesSearch;
+import com.uwetrottmann.movies.provider.MoviesContract.TmdbListMovies;
+import com.uwetrottmann.movies.provider.MoviesContract.TmdbLists;
 import com.uwetrottmann.movies.util.SelectionBuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Pattern;
 
 public class MoviesProvider extends ContentProvider {
 
@@ -46,6 +60,26 @@ public class MoviesProvider extends ContentProvider {
 
     private static final int MOVIE_ID = 101;
 
+    private static final int MOVIES_UPSERT = 102;
+
+    private static final int MOVIES_SEARCH = 103;
+
+    private static final int MOVIES_SYNC = 104;
+
+    private static final int MOVIES_SYNC_COMMIT = 105;
+
+    private static final int GENRES = 200;
+
+    private static final int GENRE_MOVIES = 201;
+
+    private static final int TMDB_LIST = 300;
+
+    /**
+     * Maximum number of cached TMDb lists, the least recently fetched ones are
+     * evicted first. Enough for a few pages of each category.
+     */
+    private static final int MAX_TMDB_LISTS = 16;
+
     private static final boolean LOGV = false;
 
     /**
@@ -58,15 +92,126 @@ public class MoviesProvider extends ContentProvider {
 
         // Movies
         matcher.addURI(authority, MoviesContract.PATH_MOVIES, MOVIES);
+        // must be added before the wildcard id path to take precedence
+        matcher.addURI(authority, MoviesContract.PATH_MOVIES + "/" + MoviesContract.PATH_UPSERT,
+                MOVIES_UPSERT);
+        matcher.addURI(authority, MoviesContract.PATH_MOVIES + "/" + MoviesContract.PATH_SEARCH,
+                MOVIES_SEARCH);
+        matcher.addURI(authority, MoviesContract.PATH_MOVIES + "/" + MoviesContract.PATH_SYNC
+                + "/#", MOVIES_SYNC);
+        matcher.addURI(authority, MoviesContract.PATH_MOVIES + "/" + MoviesContract.PATH_SYNC
+                + "/#/" + MoviesContract.PATH_COMMIT, MOVIES_SYNC_COMMIT);
         matcher.addURI(authority, MoviesContract.PATH_MOVIES + "/*", MOVIE_ID);
 
+        // Genres
+        matcher.addURI(authority, MoviesContract.PATH_GENRES, GENRES);
+        matcher.addURI(authority, MoviesContract.PATH_GENRES + "/*/" + MoviesContract.PATH_MOVIES,
+                GENRE_MOVIES);
+
+        // TMDb lists
+        matcher.addURI(authority, MoviesContract.PATH_TMDB_LISTS + "/*/*/#", TMDB_LIST);
+
         return matcher;
     }
 
     private DatabaseHelper mOpenHelper;
 
+    /**
+     * Uris changed by the batch currently applied on a thread, null if none is
+     * applied. Per thread as binder calls may run in parallel.
+     */
+    private final ThreadLocal<HashSet<Uri>> mBatchChangedUris = new ThreadLocal<HashSet<Uri>>();
+
+    /** All columns written by {@link #bulkInsert}, in binding order. */
+    private static final String[] MOVIE_COLUMNS = new String[] {
+            Movies.TITLE, Movies.YEAR, Movies.RELEASED, Movies.URL, Movies.TRAILER,
+            Movies.RUNTIME, Movies.TAGLINE, Movies.OVERVIEW, Movies.CERTIFICATION, Movies.IMDBID,
+            Movies.TMDBID, Movies.POSTER, Movies.FANART, Movies.GENRES,
+            Movies.RATINGS_PERCENTAGE, Movies.RATINGS_VOTES, Movies.WATCHED, Movies.INWATCHLIST,
+            Movies.INCOLLECTION, Movies.RATING, Movies.FINGERPRINT
+    };
+
+    private static final String INSERT_MOVIE = buildInsertMovie("INSERT");
+
+    private static final String UPDATE_MOVIE = buildUpdateMovie();
+
+    private static String buildInsertMovie(String insert) {
+        final StringBuilder sql = new StringBuilder(insert).append(" INTO ")
+                .append(Tables.MOVIES).append(" (");
+        final StringBuilder bindArgs = new StringBuilder();
+        for (int i = 0; i < MOVIE_COLUMNS.length; i++) {
+            if (i > 0) {
+                sql.append(",");
+                bindArgs.append(",");
+            }
+            sql.append(MOVIE_COLUMNS[i]);
+            bindArgs.append("?");
+        }
+        return sql.append(") VALUES (").append(bindArgs).append(")").toString();
+    }
+
+    private static String buildUpdateMovie() {
+        final StringBuilder sql = new StringBuilder("UPDATE ").append(Tables.MOVIES)
+                .append(" SET ");
+        for (int i = 0; i < MOVIE_COLUMNS.length; i++) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append(MOVIE_COLUMNS[i]).append("=?");
+        }
+        return sql.append(" WHERE ").append(Movies.TMDBID).append("=?").toString();
+    }
+
     public interface Tables {
         String MOVIES = "movies";
+
+        String GENRES = "genres";
+
+        String MOVIE_GENRES = "movie_genres";
+
+        String MOVIES_SEARCH = "movies_search";
+
+        String MOVIES_SEARCH_JOIN_MOVIES = "movies_search INNER JOIN movies ON movies_search.docid"
+                + "=movies." + Movies._ID;
+
+        String MOVIES_JOIN_MOVIE_GENRES = "movies INNER JOIN movie_genres ON movies."
+                + Movies.TMDBID + "=movie_genres." + MovieGenres.TMDBID;
+
+        String GENRES_JOIN_MOVIE_GENRES = "genres INNER JOIN movie_genres ON genres."
+                + Genres._ID + "=movie_genres." + MovieGenres.GENRE_ID;
+
+        String TMDB_LISTS = "tmdb_lists";
+
+        String TMDB_LIST_MOVIES = "tmdb_list_movies";
+
+        String TMDB_LISTS_JOIN_TMDB_LIST_MOVIES = "tmdb_lists INNER JOIN tmdb_list_movies ON "
+                + "tmdb_lists." + TmdbLists._ID + "=tmdb_list_movies." + TmdbListMovies.LIST_ID;
+    }
+
+    interface Triggers {
+        String MOVIES_DELETE_GENRES = "movies_delete_genres";
+
+        String MOVIES_SEARCH_INSERT = "movies_search_insert";
+
+        String MOVIES_SEARCH_REPLACE = "movies_search_replace";
+
+        String MOVIES_SEARCH_UPDATE = "movies_search_update";
+
+        String MOVIES_SEARCH_DELETE = "movies_search_delete";
+
+        String TMDB_LISTS_DELETE_MOVIES = "tmdb_lists_delete_movies";
+    }
+
+    interface Indexes {
+        String MOVIES_TITLE = "movies_title_idx";
+
+        String MOVIES_WATCHED = "movies_watched_idx";
+
+        String MOVIES_WATCHLIST = "movies_watchlist_idx";
+
+        String MOVIES_COLLECTION = "movies_collection_idx";
+
+        String MOVIE_GENRES_TMDBID = "movie_genres_tmdbid_idx";
     }
 
     public boolean onCreate() {
@@ -85,9 +230,19 @@ public class MoviesProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case MOVIES:
+            case MOVIES_UPSERT:
+            case MOVIES_SEARCH:
+            case MOVIES_SYNC:
+            case MOVIES_SYNC_COMMIT:
                 return Movies.CONTENT_TYPE;
             case MOVIE_ID:
                 return Movies.CONTENT_ITEM_TYPE;
+            case GENRES:
+                return Genres.CONTENT_TYPE;
+            case GENRE_MOVIES:
+                return Movies.CONTENT_TYPE;
+            case TMDB_LIST:
+                return TmdbLists.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -102,8 +257,24 @@ public class MoviesProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case MOVIES: {
-                long newid = db.insertOrThrow(Tables.MOVIES, null, values);
-                getContext().getContentResolver().notifyChange(uri, null);
+                long newid;
+                db.beginTransaction();
+                try {
+                    newid = db.insertOrThrow(Tables.MOVIES, null, values);
+                    if (values.containsKey(Movies.GENRES)) {
+                        final GenreWriter genreWriter = new GenreWriter(db);
+                        try {
+                            genreWriter.write(values.getAsString(Movies.TMDBID),
+                                    values.getAsString(Movies.GENRES));
+                        } finally {
+                            genreWriter.close();
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
                 return Movies.buildMovieUri(newid);
             }
             default: {
@@ -126,11 +297,64 @@ public class MoviesProvider extends ContentProvider {
             case MOVIE_ID: {
                 // Most cases are handled with simple SelectionBuilder
                 final SelectionBuilder builder = buildExpandedSelection(uri, match);
+                final String limit = uri.getQueryParameter(Movies.QUERY_PARAM_LIMIT);
+                if (match == MOVIES && limit != null) {
+                    return queryPage(db, uri, builder.where(selection, selectionArgs),
+                            projection, limit);
+                }
                 Cursor query = builder.where(selection, selectionArgs).query(db, projection,
                         sortOrder);
                 query.setNotificationUri(getContext().getContentResolver(), uri);
                 return query;
             }
+            case GENRES: {
+                final SelectionBuilder builder = buildExpandedSelection(uri, match);
+                Cursor query = builder.where(selection, selectionArgs).query(db, projection,
+                        Tables.GENRES + "." + Genres._ID, null, sortOrder, null);
+                // genres only change along with movies
+                query.setNotificationUri(getContext().getContentResolver(), Movies.CONTENT_URI);
+                return query;
+            }
+            case GENRE_MOVIES: {
+                final SelectionBuilder builder = buildExpandedSelection(uri, match);
+                Cursor query = builder.where(selection, selectionArgs).query(db, projection,
+                        sortOrder);
+                query.setNotificationUri(getContext().getContentResolver(), Movies.CONTENT_URI);
+                return query;
+            }
+            case MOVIES_SEARCH: {
+                final String searchQuery = uri.getQueryParameter(Movies.QUERY_PARAM_QUERY);
+                final boolean isPrefix = Boolean.parseBoolean(uri
+                        .getQueryParameter(Movies.QUERY_PARAM_PREFIX));
+                final String matchAll = buildMatchQuery(searchQuery, isPrefix, null);
+                final SelectionBuilder builder = buildExpandedSelection(uri, match);
+                if (matchAll == null) {
+                    // nothing to search for
+                    builder.where("0");
+                } else {
+                    builder.where(Tables.MOVIES_SEARCH + " MATCH ?", matchAll);
+                }
+                // rank matches in the title first
+                final String matchTitle = buildMatchQuery(searchQuery, isPrefix,
+                        MoviesSearch.TITLE);
+                final String orderBy = (matchTitle == null ? "" : "(" + Tables.MOVIES_SEARCH
+                        + ".docid IN (SELECT docid FROM " + Tables.MOVIES_SEARCH + " WHERE "
+                        + Tables.MOVIES_SEARCH + " MATCH "
+                        + DatabaseUtils.sqlEscapeString(matchTitle) + ")) DESC,")
+                        + (TextUtils.isEmpty(sortOrder) ? Movies.TITLE + " ASC" : sortOrder);
+                Cursor query = builder.where(selection, selectionArgs).query(db, projection,
+                        orderBy);
+                query.setNotificationUri(getContext().getContentResolver(), Movies.CONTENT_URI);
+                return query;
+            }
+            case TMDB_LIST: {
+                final SelectionBuilder builder = buildExpandedSelection(uri, match);
+                Cursor query = builder.where(selection, selectionArgs).query(db, projection,
+                        TextUtils.isEmpty(sortOrder) ? TmdbListMovies.POSITION + " ASC"
+                                : sortOrder);
+                query.setNotificationUri(getContext().getContentResolver(), uri);
+                return query;
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -143,12 +367,110 @@ public class MoviesProvider extends ContentProvider {
             Log.v(TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
         }
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int match = sUriMatcher.match(uri);
+        if (match == MOVIES_SYNC) {
+            // only touches sync state, nothing visible changes
+            return recordSync(db, uri, values, selection, selectionArgs);
+        }
+        if (match == MOVIES_SYNC_COMMIT) {
+            final int retVal = commitSync(db, uri);
+            notifyChange(Movies.CONTENT_URI);
+            return retVal;
+        }
         final SelectionBuilder builder = buildSimpleSelection(uri);
         int retVal = builder.where(selection, selectionArgs).update(db, values);
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return retVal;
     }
 
+    /**
+     * Adds the lists in the values to those the sync run of the
+     * {@link Uri} saw the selected movies in, resetting the lists recorded
+     * by an earlier run. See {@link Movies#buildSyncUri}.
+     */
+    private static int recordSync(SQLiteDatabase db, Uri uri, ContentValues values,
+            String selection, String[] selectionArgs) {
+        final Integer flags = values.getAsInteger(Movies.SYNC_FLAGS);
+        if (flags == null) {
+            throw new IllegalArgumentException("Missing sync flags for " + uri);
+        }
+        final String generation = Movies.getSyncGeneration(uri);
+        final ArrayList<Object> bindArgs = new ArrayList<Object>();
+        final StringBuilder sql = new StringBuilder("UPDATE ").append(Tables.MOVIES)
+                .append(" SET ").append(Movies.SYNC_FLAGS).append("=(CASE WHEN ")
+                .append(Movies.SYNC_GENERATION).append("=? THEN ").append(Movies.SYNC_FLAGS)
+                .append(" ELSE 0 END)|?,").append(Movies.SYNC_RATING).append("=");
+        bindArgs.add(generation);
+        bindArgs.add(flags);
+        if (values.containsKey(Movies.SYNC_RATING)) {
+            sql.append("?");
+            bindArgs.add(values.getAsString(Movies.SYNC_RATING));
+        } else {
+            sql.append("(CASE WHEN ").append(Movies.SYNC_GENERATION).append("=? THEN ")
+                    .append(Movies.SYNC_RATING).append(" END)");
+            bindArgs.add(generation);
+        }
+        sql.append(",").append(Movies.SYNC_GENERATION).append("=?");
+        bindArgs.add(generation);
+
+        final SelectionBuilder builder = new SelectionBuilder().table(Tables.MOVIES).where(
+                selection, selectionArgs);
+        if (!TextUtils.isEmpty(builder.getSelection())) {
+            sql.append(" WHERE ").append(builder.getSelection());
+            bindArgs.addAll(Arrays.asList(builder.getSelectionArgs()));
+        }
+        return executeUpdateDelete(db, sql.toString(), bindArgs.toArray());
+    }
+
+    /**
+     * Copies the lists and rating recorded by the sync run of the {@link Uri}
+     * to the list flags of the movies it saw. See
+     * {@link Movies#buildSyncCommitUri}.
+     */
+    private static int commitSync(SQLiteDatabase db, Uri uri) {
+        final String watched = "((" + Movies.SYNC_FLAGS + "&" + Movies.SYNC_FLAG_WATCHED
+                + ")!=0)";
+        final String inWatchlist = "((" + Movies.SYNC_FLAGS + "&" + Movies.SYNC_FLAG_WATCHLIST
+                + ")!=0)";
+        final String inCollection = "((" + Movies.SYNC_FLAGS + "&"
+                + Movies.SYNC_FLAG_COLLECTION + ")!=0)";
+        // only count movies which actually change, flags may be NULL
+        final String sql = "UPDATE " + Tables.MOVIES + " SET " + Movies.WATCHED + "=" + watched
+                + "," + Movies.INWATCHLIST + "=" + inWatchlist + "," + Movies.INCOLLECTION + "="
+                + inCollection + "," + Movies.RATING + "=" + Movies.SYNC_RATING + " WHERE "
+                + Movies.SYNC_GENERATION + "=? AND (ifnull(" + Movies.WATCHED + ",0)!="
+                + watched + " OR ifnull(" + Movies.INWATCHLIST + ",0)!=" + inWatchlist
+                + " OR ifnull(" + Movies.INCOLLECTION + ",0)!=" + inCollection + " OR ifnull("
+                + Movies.RATING + ",'')!=ifnull(" + Movies.SYNC_RATING + ",''))";
+        return executeUpdateDelete(db, sql, new Object[] {
+                Movies.getSyncGeneration(uri)
+        });
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement and returns the number of
+     * changed rows, which {@link SQLiteStatement} only reports from Honeycomb
+     * on. Runs in a transaction, so both statements use the same connection.
+     */
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, Object[] bindArgs) {
+        final SQLiteStatement statement = db.compileStatement(sql);
+        final SQLiteStatement changes = db.compileStatement("SELECT changes()");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < bindArgs.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+            }
+            statement.execute();
+            final int count = (int) changes.simpleQueryForLong();
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+            statement.close();
+            changes.close();
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (LOGV) {
@@ -157,10 +479,181 @@ public class MoviesProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final SelectionBuilder builder = buildSimpleSelection(uri);
         int retVal = builder.where(selection, selectionArgs).delete(db);
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return retVal;
     }
 
+    /**
+     * Inserts all rows inside a single {@link SQLiteDatabase} transaction
+     * using one compiled {@link SQLiteStatement}, then notifies observers
+     * once. Rows inserted through {@link Movies#CONTENT_URI} replace existing
+     * rows with the same TMDb id. Rows inserted through
+     * {@link Movies#CONTENT_URI_UPSERT} update them in place instead, keeping
+     * their row id, rows without a TMDb id are rejected. All changes will be
+     * rolled back if any single row fails.
+     * Callers writing many rows should split them into chunks, so readers are
+     * not blocked for the whole write.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (LOGV) {
+            Log.v(TAG, "bulkInsert(uri=" + uri + ", count=" + values.length + ")");
+        }
+        final int match = sUriMatcher.match(uri);
+        if (match == TMDB_LIST) {
+            return replaceTmdbList(uri, values);
+        }
+        if (match != MOVIES && match != MOVIES_UPSERT) {
+            return super.bulkInsert(uri, values);
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final boolean isUpsert = match == MOVIES_UPSERT;
+        final SQLiteStatement insert = db.compileStatement(INSERT_MOVIE);
+        final SQLiteStatement update = isUpsert ? db.compileStatement(UPDATE_MOVIE) : null;
+        final SQLiteStatement changes = isUpsert ? db.compileStatement("SELECT changes()")
+                : null;
+        final GenreWriter genreWriter = new GenreWriter(db);
+        db.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                boolean isUpdated = false;
+                if (isUpsert) {
+                    final String tmdbId = row.getAsString(Movies.TMDBID);
+                    if (tmdbId == null) {
+                        throw new SQLException("Missing TMDb id in row for " + uri);
+                    }
+                    // update the movie if it exists, insert it otherwise
+                    bindMovie(update, row);
+                    update.bindString(MOVIE_COLUMNS.length + 1, tmdbId);
+                    update.execute();
+                    isUpdated = changes.simpleQueryForLong() > 0;
+                }
+                if (!isUpdated) {
+                    bindMovie(insert, row);
+                    if (insert.executeInsert() == -1) {
+                        throw new SQLException("Failed to insert row into " + uri);
+                    }
+                }
+                if (row.containsKey(Movies.GENRES)) {
+                    genreWriter.write(row.getAsString(Movies.TMDBID),
+                            row.getAsString(Movies.GENRES));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            if (update != null) {
+                update.close();
+                changes.close();
+            }
+            genreWriter.close();
+        }
+
+        notifyChange(Movies.CONTENT_URI);
+        return values.length;
+    }
+
+    /**
+     * Replaces the movies of a cached TMDb list in a single transaction and
+     * marks the list as fetched now. Afterwards evicts the least recently
+     * fetched lists beyond {@link #MAX_TMDB_LISTS}.
+     */
+    private int replaceTmdbList(Uri uri, ContentValues[] values) {
+        final String category = TmdbLists.getCategory(uri);
+        final String language = TmdbLists.getLanguage(uri);
+        final String page = TmdbLists.getPage(uri);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + Tables.TMDB_LIST_MOVIES + " (" + TmdbListMovies.LIST_ID + ","
+                + TmdbListMovies.POSITION + "," + TmdbListMovies.TMDBID + ","
+                + TmdbListMovies.TITLE + "," + TmdbListMovies.POSTER + ") VALUES (?,?,?,?,?)");
+        db.beginTransaction();
+        try {
+            final String[] listArgs = new String[] {
+                    category, language, page
+            };
+            final String listSelection = TmdbLists.CATEGORY + "=? AND " + TmdbLists.LANGUAGE
+                    + "=? AND " + TmdbLists.PAGE + "=?";
+
+            // replacing the list row would not fire the delete trigger, so
+            // drop the old list explicitly
+            db.delete(Tables.TMDB_LISTS, listSelection, listArgs);
+            final ContentValues list = new ContentValues();
+            list.put(TmdbLists.CATEGORY, category);
+            list.put(TmdbLists.LANGUAGE, language);
+            list.put(TmdbLists.PAGE, page);
+            list.put(TmdbLists.FETCHED, System.currentTimeMillis());
+            final long listId = db.insertOrThrow(Tables.TMDB_LISTS, null, list);
+
+            for (int i = 0; i < values.length; i++) {
+                final ContentValues row = values[i];
+                insert.clearBindings();
+                insert.bindLong(1, listId);
+                insert.bindLong(2, i);
+                final Long tmdbId = row.getAsLong(TmdbListMovies.TMDBID);
+                if (tmdbId == null) {
+                    throw new SQLException("Missing TMDb id in row " + i + " for " + uri);
+                }
+                insert.bindLong(3, tmdbId);
+                bindStringOrNull(insert, 4, row.getAsString(TmdbListMovies.TITLE));
+                bindStringOrNull(insert, 5, row.getAsString(TmdbListMovies.POSTER));
+                insert.executeInsert();
+            }
+
+            // evict least recently fetched lists, their movies are removed by
+            // a trigger
+            db.delete(Tables.TMDB_LISTS, TmdbLists._ID + " IN (SELECT " + TmdbLists._ID
+                    + " FROM " + Tables.TMDB_LISTS + " ORDER BY " + TmdbLists.FETCHED
+                    + " DESC LIMIT -1 OFFSET " + MAX_TMDB_LISTS + ")", null);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+
+        notifyChange(uri);
+        return values.length;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Binds the values of all {@link #MOVIE_COLUMNS} by index, missing values
+     * are bound as NULL.
+     */
+    private static void bindMovie(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < MOVIE_COLUMNS.length; i++) {
+            final Object value = values.get(MOVIE_COLUMNS[i]);
+            final int index = i + 1;
+            if (value == null) {
+                statement.bindNull(index);
+            } else if (value instanceof String) {
+                statement.bindString(index, (String) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                statement.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                statement.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                statement.bindLong(index, (Boolean) value ? 1 : 0);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) value);
+            } else {
+                statement.bindString(index, value.toString());
+            }
+        }
+    }
+
     /**
      * Apply the given set of {@link ContentProviderOperation}, executing inside
      * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
@@ -170,21 +663,105 @@ public class MoviesProvider extends ContentProvider {
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final HashSet<Uri> changedUris = new HashSet<Uri>();
+        mBatchChangedUris.set(changedUris);
+        boolean isSuccessful = false;
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
                 results[i] = operations.get(i).apply(this, results, i);
-                db.yieldIfContendedSafely();
             }
             db.setTransactionSuccessful();
+            isSuccessful = true;
             return results;
         } finally {
             db.endTransaction();
+            mBatchChangedUris.remove();
+            if (isSuccessful) {
+                // notify once per changed uri after the batch is committed
+                for (Uri uri : changedUris) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
         }
     }
 
+    /**
+     * Notifies observers of a change to the given {@link Uri}. While a batch
+     * is applied on this thread, the notification is deferred until the batch
+     * is committed, so observers requery once instead of once per operation.
+     */
+    private void notifyChange(Uri uri) {
+        final HashSet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Queries a page of movies after the anchor given by the query parameters
+     * of the {@link Uri}, see {@link Movies#buildPageUri}.
+     */
+    private Cursor queryPage(SQLiteDatabase db, Uri uri, SelectionBuilder builder,
+            String[] projection, String limit) {
+        try {
+            Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in uri: " + uri);
+        }
+        final String afterId = uri.getQueryParameter(Movies.QUERY_PARAM_AFTER_ID);
+        final String afterTitle = uri.getQueryParameter(Movies.QUERY_PARAM_AFTER_TITLE);
+        if (afterTitle != null || afterId != null) {
+            if (afterTitle == null || afterId == null) {
+                throw new IllegalArgumentException("Incomplete anchor in uri: " + uri);
+            }
+            // the first term lets SQLite seek to the anchor using the title index
+            builder.where(Movies.TITLE + ">=? AND (" + Movies.TITLE + ">? OR " + Movies._ID
+                    + ">?)", afterTitle, afterTitle, afterId);
+        }
+        Cursor query = builder.query(db, projection, null, null, Movies.TITLE + " ASC,"
+                + Movies._ID + " ASC", limit);
+        query.setNotificationUri(getContext().getContentResolver(), Movies.CONTENT_URI);
+        return query;
+    }
+
+    /**
+     * Builds a full-text MATCH expression requiring all words of the search
+     * query. Characters with a meaning in the FTS query syntax are dropped and
+     * words are lower cased, so they are never taken as operators. Returns
+     * null if there is no word to search for.
+     * 
+     * @param isPrefix Whether words should also match as prefix.
+     * @param column Restrict matches to this column, or null to match all.
+     */
+    private static String buildMatchQuery(String query, boolean isPrefix, String column) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase().split("\\s+")) {
+            word = word.replaceAll("[\"*:()^\\-]", "");
+            if (word.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            if (column != null) {
+                match.append(column).append(':');
+            }
+            match.append(word);
+            if (isPrefix) {
+                match.append('*');
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
     /**
      * Build a simple {@link SelectionBuilder} to match the requested
      * {@link Uri}. This is usually enough to support {@link #insert},
@@ -222,12 +799,115 @@ public class MoviesProvider extends ContentProvider {
                 final String id = Movies.getId(uri);
                 return builder.table(Tables.MOVIES).where(Movies._ID + "=?", id);
             }
+            case GENRES: {
+                return builder.table(Tables.GENRES_JOIN_MOVIE_GENRES)
+                        .mapToTable(Genres._ID, Tables.GENRES).map(Genres.COUNT, "COUNT(*)");
+            }
+            case MOVIES_SEARCH: {
+                return builder.table(Tables.MOVIES_SEARCH_JOIN_MOVIES);
+            }
+            case GENRE_MOVIES: {
+                final String genreId = Genres.getId(uri);
+                return builder.table(Tables.MOVIES_JOIN_MOVIE_GENRES)
+                        .mapToTable(Movies._ID, Tables.MOVIES)
+                        .where(MovieGenres.GENRE_ID + "=?", genreId);
+            }
+            case TMDB_LIST: {
+                return builder.table(Tables.TMDB_LISTS_JOIN_TMDB_LIST_MOVIES)
+                        .mapToTable(TmdbListMovies._ID, Tables.TMDB_LIST_MOVIES)
+                        .where(TmdbLists.CATEGORY + "=?", TmdbLists.getCategory(uri))
+                        .where(TmdbLists.LANGUAGE + "=?", TmdbLists.getLanguage(uri))
+                        .where(TmdbLists.PAGE + "=?", TmdbLists.getPage(uri));
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
         }
     }
 
+    /**
+     * Replaces the genres of movies with compiled statements. Genre ids are
+     * cached, so each genre is looked up only once. Use inside a transaction
+     * and close when done.
+     */
+    private static class GenreWriter {
+
+        private static final String GENRES_SEPARATOR_PATTERN = Pattern
+                .quote(Movies.GENRES_SEPARATOR);
+
+        private final SQLiteStatement mInsertGenre;
+
+        private final SQLiteStatement mQueryGenreId;
+
+        private final SQLiteStatement mDeleteMovieGenres;
+
+        private final SQLiteStatement mInsertMovieGenre;
+
+        private final HashMap<String, Long> mGenreIds = new HashMap<String, Long>();
+
+        GenreWriter(SQLiteDatabase db) {
+            mInsertGenre = db.compileStatement("INSERT OR IGNORE INTO " + Tables.GENRES + " ("
+                    + Genres.NAME + ") VALUES (?)");
+            mQueryGenreId = db.compileStatement("SELECT " + Genres._ID + " FROM "
+                    + Tables.GENRES + " WHERE " + Genres.NAME + "=?");
+            mDeleteMovieGenres = db.compileStatement("DELETE FROM " + Tables.MOVIE_GENRES
+                    + " WHERE " + MovieGenres.TMDBID + "=?");
+            mInsertMovieGenre = db.compileStatement("INSERT OR IGNORE INTO "
+                    + Tables.MOVIE_GENRES + " (" + MovieGenres.TMDBID + ","
+                    + MovieGenres.GENRE_ID + ") VALUES (?,?)");
+        }
+
+        /**
+         * Replaces the genres of the given movie.
+         * 
+         * @param genres Genre names separated by
+         *            {@link Movies#GENRES_SEPARATOR}, null to remove all.
+         */
+        void write(String tmdbId, String genres) {
+            if (tmdbId == null) {
+                return;
+            }
+            mDeleteMovieGenres.bindString(1, tmdbId);
+            mDeleteMovieGenres.execute();
+            if (TextUtils.isEmpty(genres)) {
+                return;
+            }
+
+            for (String name : TextUtils.split(genres, GENRES_SEPARATOR_PATTERN)) {
+                name = name.trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                mInsertMovieGenre.bindString(1, tmdbId);
+                mInsertMovieGenre.bindLong(2, getGenreId(name));
+                mInsertMovieGenre.executeInsert();
+            }
+        }
+
+        private long getGenreId(String name) {
+            Long genreId = mGenreIds.get(name);
+            if (genreId == null) {
+                mInsertGenre.bindString(1, name);
+                long newId = mInsertGenre.executeInsert();
+                if (newId == -1) {
+                    // genre exists already
+                    mQueryGenreId.bindString(1, name);
+                    newId = mQueryGenreId.simpleQueryForLong();
+                }
+                genreId = newId;
+                mGenreIds.put(name, genreId);
+            }
+            return genreId;
+        }
+
+        void close() {
+            mInsertGenre.close();
+            mQueryGenreId.close();
+            mDeleteMovieGenres.close();
+            mInsertMovieGenre.close();
+        }
+    }
+
     /**
      * This class helps open, create, and upgrade the database file. Set to
      * package visibility for testing purposes.
@@ -236,11 +916,32 @@ public class MoviesProvider extends ContentProvider {
 
         private static final int DBVER_ORIGINAL = 1;
 
+        /** Adds indexes for the title sort order and the flag filters. */
+        private static final int DBVER_INDEXES = 2;
+
+        /** Adds a fingerprint column to skip unchanged movies when syncing. */
+        private static final int DBVER_FINGERPRINT = 3;
+
+        /** Adds normalized genres tables. */
+        private static final int DBVER_GENRES = 4;
+
+        /** Adds a full-text search table. */
+        private static final int DBVER_SEARCH = 5;
+
+        /** Adds tables caching TMDb lists. */
+        private static final int DBVER_TMDB_LISTS = 6;
+
+        /** Adds the rating of the user. */
+        private static final int DBVER_RATING = 7;
+
+        /** Adds columns recording which movies a sync run saw. */
+        private static final int DBVER_SYNC_GENERATION = 8;
+
         private static final String DATABASE_NAME = "movies.db";
 
         private static final String TAG = "DatabaseHelper";
 
-        public static final int DATABASE_VERSION = DBVER_ORIGINAL;
+        public static final int DATABASE_VERSION = DBVER_SYNC_GENERATION;
 
         private static final String CREATE_MOVIES_TABLE = "CREATE TABLE " + Tables.MOVIES + " ("
                 + Movies._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -283,29 +984,254 @@ public class MoviesProvider extends ContentProvider {
 
                 + Movies.INCOLLECTION + " INTEGER,"
 
+                + Movies.RATING + " TEXT,"
+
+                + Movies.FINGERPRINT + " TEXT,"
+
+                + Movies.SYNC_GENERATION + " INTEGER NOT NULL DEFAULT 0,"
+
+                + Movies.SYNC_FLAGS + " INTEGER NOT NULL DEFAULT 0,"
+
+                + Movies.SYNC_RATING + " TEXT,"
+
                 + "UNIQUE (" + Movies.TMDBID + ") ON CONFLICT REPLACE"
 
                 + ");";
 
+        @TargetApi(16)
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            if (AndroidUtils.isJellyBeanOrHigher()) {
+                setWriteAheadLoggingEnabled(true);
+            }
         }
 
+        /**
+         * Turns on write-ahead logging on Honeycomb and ICS, so queries do not
+         * block while a sync transaction is running. Older platforms fall back
+         * to the rollback journal, where long transactions yield to waiting
+         * readers instead.
+         */
+        @TargetApi(11)
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (AndroidUtils.isHoneycombOrHigher() && !AndroidUtils.isJellyBeanOrHigher()
+                    && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
+        private static final String CREATE_MOVIES_TITLE_INDEX = "CREATE INDEX "
+                + Indexes.MOVIES_TITLE + " ON " + Tables.MOVIES + " (" + Movies.TITLE + ");";
+
+        private static final String CREATE_MOVIES_WATCHED_INDEX = "CREATE INDEX "
+                + Indexes.MOVIES_WATCHED + " ON " + Tables.MOVIES + " (" + Movies.WATCHED + ","
+                + Movies.TITLE + ");";
+
+        private static final String CREATE_MOVIES_WATCHLIST_INDEX = "CREATE INDEX "
+                + Indexes.MOVIES_WATCHLIST + " ON " + Tables.MOVIES + " (" + Movies.INWATCHLIST
+                + "," + Movies.TITLE + ");";
+
+        private static final String CREATE_MOVIES_COLLECTION_INDEX = "CREATE INDEX "
+                + Indexes.MOVIES_COLLECTION + " ON " + Tables.MOVIES + " ("
+                + Movies.INCOLLECTION + "," + Movies.TITLE + ");";
+
+        private static final String CREATE_GENRES_TABLE = "CREATE TABLE " + Tables.GENRES + " ("
+                + Genres._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+                + Genres.NAME + " TEXT NOT NULL,"
+
+                + "UNIQUE (" + Genres.NAME + ") ON CONFLICT IGNORE"
+
+                + ");";
+
+        /**
+         * Links movies by TMDb id, which unlike the row id survives movies
+         * being replaced. The unique constraint doubles as covering index to
+         * list and count the movies of a genre.
+         */
+        private static final String CREATE_MOVIE_GENRES_TABLE = "CREATE TABLE "
+                + Tables.MOVIE_GENRES + " ("
+
+                + MovieGenres.TMDBID + " TEXT NOT NULL,"
+
+                + MovieGenres.GENRE_ID + " INTEGER NOT NULL REFERENCES " + Tables.GENRES + "("
+                + Genres._ID + "),"
+
+                + "UNIQUE (" + MovieGenres.GENRE_ID + "," + MovieGenres.TMDBID
+                + ") ON CONFLICT IGNORE"
+
+                + ");";
+
+        private static final String CREATE_MOVIE_GENRES_TMDBID_INDEX = "CREATE INDEX "
+                + Indexes.MOVIE_GENRES_TMDBID + " ON " + Tables.MOVIE_GENRES + " ("
+                + MovieGenres.TMDBID + "," + MovieGenres.GENRE_ID + ");";
+
+        private static final String CREATE_MOVIES_DELETE_GENRES_TRIGGER = "CREATE TRIGGER "
+                + Triggers.MOVIES_DELETE_GENRES + " AFTER DELETE ON " + Tables.MOVIES
+                + " BEGIN DELETE FROM " + Tables.MOVIE_GENRES + " WHERE " + MovieGenres.TMDBID
+                + "=old." + Movies.TMDBID + "; END;";
+
+        /**
+         * Mirrors title, tagline and overview of movies, using the movie row
+         * id as document id. Kept up to date by triggers on the movies table.
+         */
+        private static final String CREATE_MOVIES_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+                + Tables.MOVIES_SEARCH + " USING FTS3(" + MoviesSearch.TITLE + ","
+                + MoviesSearch.TAGLINE + "," + MoviesSearch.OVERVIEW + ");";
+
+        private static final String CREATE_MOVIES_SEARCH_INSERT_TRIGGER = "CREATE TRIGGER "
+                + Triggers.MOVIES_SEARCH_INSERT + " AFTER INSERT ON " + Tables.MOVIES
+                + " BEGIN INSERT INTO " + Tables.MOVIES_SEARCH + " (docid," + MoviesSearch.TITLE
+                + "," + MoviesSearch.TAGLINE + "," + MoviesSearch.OVERVIEW + ") VALUES (new."
+                + Movies._ID + ",new." + Movies.TITLE + ",new." + Movies.TAGLINE + ",new."
+                + Movies.OVERVIEW + "); END;";
+
+        /**
+         * Rows replaced on conflict do not fire delete triggers, so remove
+         * their documents before the new row is inserted.
+         */
+        private static final String CREATE_MOVIES_SEARCH_REPLACE_TRIGGER = "CREATE TRIGGER "
+                + Triggers.MOVIES_SEARCH_REPLACE + " BEFORE INSERT ON " + Tables.MOVIES
+                + " BEGIN DELETE FROM " + Tables.MOVIES_SEARCH + " WHERE docid IN (SELECT "
+                + Movies._ID + " FROM " + Tables.MOVIES + " WHERE " + Movies.TMDBID + "=new."
+                + Movies.TMDBID + "); END;";
+
+        /**
+         * Re-adds the document instead of updating it, as an upsert may have
+         * removed it already through the replace trigger.
+         */
+        private static final String CREATE_MOVIES_SEARCH_UPDATE_TRIGGER = "CREATE TRIGGER "
+                + Triggers.MOVIES_SEARCH_UPDATE + " AFTER UPDATE OF " + Movies.TITLE + ","
+                + Movies.TAGLINE + "," + Movies.OVERVIEW + " ON " + Tables.MOVIES
+                + " BEGIN DELETE FROM " + Tables.MOVIES_SEARCH + " WHERE docid=old."
+                + Movies._ID + "; INSERT INTO " + Tables.MOVIES_SEARCH + " (docid,"
+                + MoviesSearch.TITLE + "," + MoviesSearch.TAGLINE + "," + MoviesSearch.OVERVIEW
+                + ") VALUES (new." + Movies._ID + ",new." + Movies.TITLE + ",new."
+                + Movies.TAGLINE + ",new." + Movies.OVERVIEW + "); END;";
+
+        private static final String CREATE_MOVIES_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER "
+                + Triggers.MOVIES_SEARCH_DELETE + " AFTER DELETE ON " + Tables.MOVIES
+                + " BEGIN DELETE FROM " + Tables.MOVIES_SEARCH + " WHERE docid=old."
+                + Movies._ID + "; END;";
+
+        private static final String CREATE_TMDB_LISTS_TABLE = "CREATE TABLE "
+                + Tables.TMDB_LISTS + " ("
+
+                + TmdbLists._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+                + TmdbLists.CATEGORY + " TEXT NOT NULL,"
+
+                + TmdbLists.LANGUAGE + " TEXT NOT NULL,"
+
+                + TmdbLists.PAGE + " INTEGER NOT NULL,"
+
+                + TmdbLists.FETCHED + " INTEGER NOT NULL,"
+
+                + "UNIQUE (" + TmdbLists.CATEGORY + "," + TmdbLists.LANGUAGE + ","
+                + TmdbLists.PAGE + ")"
+
+                + ");";
+
+        /**
+         * The unique constraint doubles as index to read a list in order.
+         */
+        private static final String CREATE_TMDB_LIST_MOVIES_TABLE = "CREATE TABLE "
+                + Tables.TMDB_LIST_MOVIES + " ("
+
+                + TmdbListMovies._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+                + TmdbListMovies.LIST_ID + " INTEGER NOT NULL REFERENCES " + Tables.TMDB_LISTS
+                + "(" + TmdbLists._ID + "),"
+
+                + TmdbListMovies.POSITION + " INTEGER NOT NULL,"
+
+                + TmdbListMovies.TMDBID + " INTEGER NOT NULL,"
+
+                + TmdbListMovies.TITLE + " TEXT,"
+
+                + TmdbListMovies.POSTER + " TEXT,"
+
+                + "UNIQUE (" + TmdbListMovies.LIST_ID + "," + TmdbListMovies.POSITION + ")"
+
+                + ");";
+
+        private static final String CREATE_TMDB_LISTS_DELETE_MOVIES_TRIGGER = "CREATE TRIGGER "
+                + Triggers.TMDB_LISTS_DELETE_MOVIES + " AFTER DELETE ON " + Tables.TMDB_LISTS
+                + " BEGIN DELETE FROM " + Tables.TMDB_LIST_MOVIES + " WHERE "
+                + TmdbListMovies.LIST_ID + "=old." + TmdbLists._ID + "; END;";
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(CREATE_MOVIES_TABLE);
+            createMoviesIndexes(db);
+            createGenresTables(db);
+            createSearchTable(db);
+            createTmdbListsTables(db);
+        }
+
+        private static void createTmdbListsTables(SQLiteDatabase db) {
+            db.execSQL(CREATE_TMDB_LISTS_TABLE);
+            db.execSQL(CREATE_TMDB_LIST_MOVIES_TABLE);
+            db.execSQL(CREATE_TMDB_LISTS_DELETE_MOVIES_TRIGGER);
+        }
+
+        private static void createSearchTable(SQLiteDatabase db) {
+            db.execSQL(CREATE_MOVIES_SEARCH_TABLE);
+            db.execSQL(CREATE_MOVIES_SEARCH_INSERT_TRIGGER);
+            db.execSQL(CREATE_MOVIES_SEARCH_REPLACE_TRIGGER);
+            db.execSQL(CREATE_MOVIES_SEARCH_UPDATE_TRIGGER);
+            db.execSQL(CREATE_MOVIES_SEARCH_DELETE_TRIGGER);
+        }
+
+        private static void createGenresTables(SQLiteDatabase db) {
+            db.execSQL(CREATE_GENRES_TABLE);
+            db.execSQL(CREATE_MOVIE_GENRES_TABLE);
+            db.execSQL(CREATE_MOVIE_GENRES_TMDBID_INDEX);
+            db.execSQL(CREATE_MOVIES_DELETE_GENRES_TRIGGER);
+        }
+
+        /**
+         * Indexes backing the title sort order of movie lists and filtering
+         * by the watched, watchlist and collection flags.
+         */
+        private static void createMoviesIndexes(SQLiteDatabase db) {
+            db.execSQL(CREATE_MOVIES_TITLE_INDEX);
+            db.execSQL(CREATE_MOVIES_WATCHED_INDEX);
+            db.execSQL(CREATE_MOVIES_WATCHLIST_INDEX);
+            db.execSQL(CREATE_MOVIES_COLLECTION_INDEX);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
 
-            // run necessary upgrades
+            // run necessary upgrades step by step, each case falls through to
+            // the next one, so existing data is kept
             int version = oldVersion;
             switch (version) {
-            // case 1:
-            // upgradeToTwo(db);
-            // version = 2;
+                case DBVER_ORIGINAL:
+                    upgradeToIndexes(db);
+                    version = DBVER_INDEXES;
+                case DBVER_INDEXES:
+                    upgradeToFingerprint(db);
+                    version = DBVER_FINGERPRINT;
+                case DBVER_FINGERPRINT:
+                    upgradeToGenres(db);
+                    version = DBVER_GENRES;
+                case DBVER_GENRES:
+                    upgradeToSearch(db);
+                    version = DBVER_SEARCH;
+                case DBVER_SEARCH:
+                    createTmdbListsTables(db);
+                    version = DBVER_TMDB_LISTS;
+                case DBVER_TMDB_LISTS:
+                    upgradeToRating(db);
+                    version = DBVER_RATING;
+                case DBVER_RATING:
+                    upgradeToSyncGeneration(db);
+                    version = DBVER_SYNC_GENERATION;
             }
 
             // drop all tables if version is not right
@@ -313,10 +1239,68 @@ public class MoviesProvider extends ContentProvider {
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Database has incompatible version, starting from scratch");
                 db.execSQL("DROP TABLE IF EXISTS " + Tables.MOVIES);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.GENRES);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.MOVIE_GENRES);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.MOVIES_SEARCH);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.TMDB_LISTS);
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.TMDB_LIST_MOVIES);
 
                 onCreate(db);
             }
         }
+
+        private static void upgradeToIndexes(SQLiteDatabase db) {
+            createMoviesIndexes(db);
+        }
+
+        /**
+         * Existing movies get no fingerprint, so they are written once on the
+         * next sync.
+         */
+        private static void upgradeToFingerprint(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Tables.MOVIES + " ADD COLUMN " + Movies.FINGERPRINT
+                    + " TEXT;");
+        }
+
+        /**
+         * Genres of existing movies are filled on the next sync, as their
+         * fingerprints now include the genres.
+         */
+        private static void upgradeToGenres(SQLiteDatabase db) {
+            createGenresTables(db);
+        }
+
+        private static void upgradeToSearch(SQLiteDatabase db) {
+            createSearchTable(db);
+            // index existing movies
+            db.execSQL("INSERT INTO " + Tables.MOVIES_SEARCH + " (docid," + MoviesSearch.TITLE
+                    + "," + MoviesSearch.TAGLINE + "," + MoviesSearch.OVERVIEW + ") SELECT "
+                    + Movies._ID + "," + Movies.TITLE + "," + Movies.TAGLINE + ","
+                    + Movies.OVERVIEW + " FROM " + Tables.MOVIES + ";");
+        }
+
+        /**
+         * Ratings of existing movies are filled on the next full sync, which
+         * writes the ratings list along with the other list flags. The rating
+         * is not part of the fingerprint, that only covers the movie details.
+         */
+        private static void upgradeToRating(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Tables.MOVIES + " ADD COLUMN " + Movies.RATING
+                    + " TEXT;");
+        }
+
+        /**
+         * Existing movies count as seen by no sync run yet, which is fine as
+         * the next full sync sees all movies still in the library.
+         */
+        private static void upgradeToSyncGeneration(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Tables.MOVIES + " ADD COLUMN " + Movies.SYNC_GENERATION
+                    + " INTEGER NOT NULL DEFAULT 0;");
+            db.execSQL("ALTER TABLE " + Tables.MOVIES + " ADD COLUMN " + Movies.SYNC_FLAGS
+                    + " INTEGER NOT NULL DEFAULT 0;");
+            db.execSQL("ALTER TABLE " + Tables.MOVIES + " ADD COLUMN " + Movies.SYNC_RATING
+                    + " TEXT;");
+        }
     }
 
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.R;
+import com.uwetrottmann.movies.util.MoviesSync;
+import com.uwetrottmann.movies.util.MoviesSync.Result;
+import com.uwetrottmann.movies.util.Utils;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Schedules syncs of the trakt library, replacing running them from the UI.
+ * <p>
+ * Periodic syncs run every {@link #SYNC_INTERVAL}, but only on an unmetered
+ * network and with enough battery, otherwise they wait until conditions
+ * improve. Manual syncs only need a network connection. Failed syncs are
+ * retried with exponential backoff. A request is dropped if a sync started
+ * after it was made, so a manual sync shortly before a periodic one
+ * satisfies both. Pending requests and metrics are stored in preferences,
+ * so they survive the process being killed. A sync interrupted that way
+ * stays pending and runs again.
+ */
+public class SyncScheduler {
+
+    private static final String TAG = "SyncScheduler";
+
+    private static final String PREFS_NAME = "com.uwetrottmann.movies.sync";
+
+    private static final String KEY_PENDING = "pending";
+
+    private static final String KEY_PENDING_MANUAL = "pendingmanual";
+
+    private static final String KEY_IN_PROGRESS = "inprogress";
+
+    private static final String KEY_FAILURES = "failures";
+
+    private static final String KEY_DEFERRALS = "deferrals";
+
+    private static final String KEY_LAST_DEFERRAL = "lastdeferral";
+
+    private static final String KEY_LAST_ATTEMPT = "lastattempt";
+
+    private static final String KEY_LAST_SUCCESS = "lastsuccess";
+
+    private static final String KEY_LAST_RESULT = "lastresult";
+
+    private static final String KEY_LAST_DURATION = "lastduration";
+
+    private static final String KEY_TOTAL_DURATION = "totalduration";
+
+    private static final String KEY_COUNT_SUCCESS = "count.success";
+
+    private static final String KEY_COUNT_FAILURE = "count.failure";
+
+    private static final String KEY_COUNT_COALESCED = "count.coalesced";
+
+    private static final String KEY_COUNT_DEFERRED = "count.deferred";
+
+    private static final String KEY_COUNT_INTERRUPTED = "count.interrupted";
+
+    public static final long SYNC_INTERVAL = 12 * DateUtils.HOUR_IN_MILLIS;
+
+    private static final long BACKOFF_INITIAL = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final long BACKOFF_MAX = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    /** Periodic syncs may use metered networks if the last success is older. */
+    private static final long MAX_STALENESS = 3 * DateUtils.DAY_IN_MILLIS;
+
+    /** Periodic syncs wait below this battery level, unless charging. */
+    private static final int MIN_BATTERY_PERCENT = 15;
+
+    private static final AtomicBoolean sIsRunning = new AtomicBoolean();
+
+    private SyncScheduler() {
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Requests a sync as soon as the constraints allow. Manual requests are
+     * reported to the user, a manual request while a sync is running is
+     * dropped.
+     */
+    public static void requestSync(Context context, boolean isManual) {
+        if (isManual && sIsRunning.get()) {
+            Toast.makeText(context, R.string.update_inprogress, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        final SharedPreferences prefs = getPrefs(context);
+        prefs.edit().putBoolean(KEY_PENDING, true)
+                .putBoolean(KEY_PENDING_MANUAL, isManual || prefs.getBoolean(KEY_PENDING_MANUAL,
+                        false)).commit();
+
+        context.startService(buildSyncIntent(context, isManual, System.currentTimeMillis()));
+    }
+
+    /**
+     * Re-requests a sync which could not run yet, for example after the
+     * network came back or the device restarted.
+     */
+    static void requestPendingSync(Context context) {
+        final SharedPreferences prefs = getPrefs(context);
+        if (!isPending(prefs) || sIsRunning.get()) {
+            return;
+        }
+        context.startService(buildSyncIntent(context,
+                prefs.getBoolean(KEY_PENDING_MANUAL, false), System.currentTimeMillis()));
+    }
+
+    /**
+     * Whether a sync was requested but did not run yet, or was started but
+     * did not finish because the process was killed.
+     */
+    private static boolean isPending(SharedPreferences prefs) {
+        return prefs.getBoolean(KEY_PENDING, false)
+                || (prefs.getLong(KEY_IN_PROGRESS, 0) != 0 && !sIsRunning.get());
+    }
+
+    private static Intent buildSyncIntent(Context context, boolean isManual, long requestedAt) {
+        final Intent intent = new Intent(context, SyncService.class);
+        intent.putExtra(SyncService.EXTRA_IS_MANUAL, isManual);
+        intent.putExtra(SyncService.EXTRA_REQUESTED_AT, requestedAt);
+        return intent;
+    }
+
+    /**
+     * Sets the alarm for the next periodic sync, or the next retry after a
+     * failure or after a sync was deferred. Alarms do not survive restarts,
+     * so call this on app start, after boot and when the credentials
+     * change. Cancels the alarm if there are no valid credentials. Enables
+     * {@link SyncReceiver} only while a deferred sync is pending.
+     */
+    public static void ensureScheduled(Context context) {
+        final AlarmManager alarmManager = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        final SharedPreferences prefs = getPrefs(context);
+
+        final boolean isCredentialsValid = Utils.isTraktCredentialsValid(context);
+        final boolean isDeferred = prefs.getInt(KEY_DEFERRALS, 0) > 0 && isPending(prefs);
+        setReceiverEnabled(context, isCredentialsValid && isDeferred);
+
+        if (!isCredentialsValid) {
+            final PendingIntent existing = PendingIntent.getService(context, 0,
+                    new Intent(context, SyncService.class), PendingIntent.FLAG_NO_CREATE);
+            if (existing != null) {
+                alarmManager.cancel(existing);
+                existing.cancel();
+            }
+            return;
+        }
+
+        final int failures = prefs.getInt(KEY_FAILURES, 0);
+        final long nextSync;
+        if (isDeferred) {
+            // check the constraints again, SyncReceiver may never be called
+            nextSync = prefs.getLong(KEY_LAST_DEFERRAL, 0)
+                    + getBackoff(prefs.getInt(KEY_DEFERRALS, 0));
+        } else if (failures > 0) {
+            nextSync = prefs.getLong(KEY_LAST_ATTEMPT, 0) + getBackoff(failures);
+        } else {
+            nextSync = prefs.getLong(KEY_LAST_SUCCESS, 0) + SYNC_INTERVAL;
+        }
+
+        // not a wakeup alarm, a sync can wait until the device is in use
+        final PendingIntent operation = PendingIntent.getService(context, 0,
+                buildSyncIntent(context, false, nextSync), PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.RTC, Math.max(nextSync, System.currentTimeMillis()),
+                operation);
+    }
+
+    /**
+     * Enables or disables {@link SyncReceiver}, so network and power changes
+     * only start the process while they may let a deferred sync run.
+     */
+    private static void setReceiverEnabled(Context context, boolean isEnabled) {
+        final PackageManager packageManager = context.getPackageManager();
+        final ComponentName receiver = new ComponentName(context, SyncReceiver.class);
+        // the default state is disabled, see the manifest
+        final int state = isEnabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+        if (packageManager.getComponentEnabledSetting(receiver) != state) {
+            packageManager.setComponentEnabledSetting(receiver, state,
+                    PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    private static long getBackoff(int retries) {
+        // 5 min, 10 min, 20 min, ... up to 6 hours
+        final int exponent = Math.min(retries - 1, 16);
+        return Math.min(BACKOFF_INITIAL << exponent, BACKOFF_MAX);
+    }
+
+    /**
+     * Runs the sync if it is still needed and the constraints are met,
+     * records the outcome and schedules the next one. Blocks, call it from a
+     * background thread.
+     *
+     * @return The result of the sync, null if it was not run.
+     */
+    static Result runSync(Context context, boolean isManual, long requestedAt) {
+        final SharedPreferences prefs = getPrefs(context);
+
+        if (!Utils.isTraktCredentialsValid(context)) {
+            prefs.edit().putBoolean(KEY_PENDING, false).putBoolean(KEY_PENDING_MANUAL, false)
+                    .commit();
+            ensureScheduled(context);
+            return isManual ? Result.INVALID_CREDENTIALS : null;
+        }
+
+        final long interruptedAttempt = prefs.getLong(KEY_IN_PROGRESS, 0);
+        if (interruptedAttempt != 0 && !sIsRunning.get()) {
+            // the process died during the last sync, run it again; counts as
+            // a failure so later retries back off
+            prefs.edit().remove(KEY_IN_PROGRESS).putBoolean(KEY_PENDING, true)
+                    .putLong(KEY_LAST_ATTEMPT, interruptedAttempt)
+                    .putInt(KEY_FAILURES, prefs.getInt(KEY_FAILURES, 0) + 1)
+                    .putInt(KEY_COUNT_INTERRUPTED, prefs.getInt(KEY_COUNT_INTERRUPTED, 0) + 1)
+                    .commit();
+            Log.d(TAG, "Last sync was interrupted, running it again");
+        } else if (prefs.getLong(KEY_LAST_ATTEMPT, 0) >= requestedAt) {
+            // drop requests already served by a sync started after them
+            increment(prefs, KEY_COUNT_COALESCED);
+            Log.d(TAG, "Skipping sync, already synced after request");
+            ensureScheduled(context);
+            return null;
+        }
+
+        if (!isManual && !canRunPeriodic(context, prefs)) {
+            defer(context, prefs);
+            Log.d(TAG, "Deferring sync until constraints are met");
+            return null;
+        }
+        if (!AndroidUtils.isNetworkConnected(context)) {
+            defer(context, prefs);
+            Log.d(TAG, "Deferring sync until connected");
+            return isManual ? Result.FAILURE : null;
+        }
+
+        if (!sIsRunning.compareAndSet(false, true)) {
+            return null;
+        }
+        final long attemptTime = System.currentTimeMillis();
+        final long start = SystemClock.elapsedRealtime();
+        Result result;
+        try {
+            // the request stays pending until the sync returns
+            prefs.edit().putLong(KEY_IN_PROGRESS, attemptTime).commit();
+            // only full syncs catch removals, which the user expects to see
+            result = new MoviesSync(context, isManual).sync();
+        } finally {
+            sIsRunning.set(false);
+        }
+        final long duration = SystemClock.elapsedRealtime() - start;
+
+        final SharedPreferences.Editor editor = prefs.edit();
+        editor.remove(KEY_IN_PROGRESS);
+        editor.putInt(KEY_DEFERRALS, 0);
+        editor.putLong(KEY_LAST_ATTEMPT, attemptTime);
+        editor.putBoolean(KEY_PENDING, false);
+        editor.putBoolean(KEY_PENDING_MANUAL, false);
+        editor.putString(KEY_LAST_RESULT, result.name());
+        editor.putLong(KEY_LAST_DURATION, duration);
+        editor.putLong(KEY_TOTAL_DURATION, prefs.getLong(KEY_TOTAL_DURATION, 0) + duration);
+        if (result == Result.SUCCESS) {
+            editor.putLong(KEY_LAST_SUCCESS, attemptTime);
+            editor.putInt(KEY_FAILURES, 0);
+            editor.putInt(KEY_COUNT_SUCCESS, prefs.getInt(KEY_COUNT_SUCCESS, 0) + 1);
+        } else {
+            editor.putInt(KEY_FAILURES, prefs.getInt(KEY_FAILURES, 0) + 1);
+            editor.putInt(KEY_COUNT_FAILURE, prefs.getInt(KEY_COUNT_FAILURE, 0) + 1);
+        }
+        editor.commit();
+        Log.d(TAG, (isManual ? "Manual" : "Periodic") + " sync " + result + " in " + duration
+                + " ms");
+
+        ensureScheduled(context);
+        return result;
+    }
+
+    /**
+     * Keeps the request pending. SyncReceiver, enabled while the request is
+     * deferred, requests it again once conditions change, a backed off alarm
+     * checks again in any case.
+     */
+    private static void defer(Context context, SharedPreferences prefs) {
+        prefs.edit().putBoolean(KEY_PENDING, true)
+                .putInt(KEY_DEFERRALS, prefs.getInt(KEY_DEFERRALS, 0) + 1)
+                .putLong(KEY_LAST_DEFERRAL, System.currentTimeMillis())
+                .putInt(KEY_COUNT_DEFERRED, prefs.getInt(KEY_COUNT_DEFERRED, 0) + 1).commit();
+        ensureScheduled(context);
+    }
+
+    private static boolean canRunPeriodic(Context context, SharedPreferences prefs) {
+        final boolean isStale = System.currentTimeMillis()
+                - prefs.getLong(KEY_LAST_SUCCESS, 0) > MAX_STALENESS;
+        if (AndroidUtils.isNetworkMetered(context) && !isStale) {
+            return false;
+        }
+        return !isBatteryLow(context);
+    }
+
+    private static boolean isBatteryLow(Context context) {
+        // sticky broadcast, no receiver is registered
+        final Intent battery = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return false;
+        }
+        final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) {
+            return false;
+        }
+        return level * 100 / scale < MIN_BATTERY_PERCENT;
+    }
+
+    private static void increment(SharedPreferences prefs, String key) {
+        prefs.edit().putInt(key, prefs.getInt(key, 0) + 1).commit();
+    }
+
+    /**
+     * Prints the sync state and metrics, for example from
+     * {@link android.app.Activity#dump}.
+     */
+    public static void dump(Context context, String prefix, PrintWriter writer) {
+        final SharedPreferences prefs = getPrefs(context);
+        final int successes = prefs.getInt(KEY_COUNT_SUCCESS, 0);
+        final int failures = prefs.getInt(KEY_COUNT_FAILURE, 0);
+        final int runs = successes + failures;
+        writer.print(prefix);
+        writer.println("SyncScheduler:");
+        writer.print(prefix);
+        writer.println("  Running: " + sIsRunning.get() + ", pending: " + isPending(prefs)
+                + " (manual: "
+                + prefs.getBoolean(KEY_PENDING_MANUAL, false) + ")");
+        writer.print(prefix);
+        writer.println("  Last attempt: " + prefs.getLong(KEY_LAST_ATTEMPT, 0) + " "
+                + prefs.getString(KEY_LAST_RESULT, "none") + " in "
+                + prefs.getLong(KEY_LAST_DURATION, 0) + " ms, last success: "
+                + prefs.getLong(KEY_LAST_SUCCESS, 0));
+        writer.print(prefix);
+        writer.println("  Runs: " + successes + " succeeded, " + failures + " failed ("
+                + prefs.getInt(KEY_FAILURES, 0) + " in a row), avg "
+                + (runs == 0 ? 0 : prefs.getLong(KEY_TOTAL_DURATION, 0) / runs) + " ms");
+        writer.print(prefix);
+        writer.println("  Requests: " + prefs.getInt(KEY_COUNT_COALESCED, 0) + " coalesced, "
+                + prefs.getInt(KEY_COUNT_DEFERRED, 0) + " deferred, "
+                + prefs.getInt(KEY_COUNT_INTERRUPTED, 0) + " interrupted");
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.service;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Handler;
+import android.widget.Toast;
+
+import com.uwetrottmann.movies.R;
+import com.uwetrottmann.movies.util.MoviesSync.Result;
+import com.uwetrottmann.movies.util.PosterCacheTask;
+
+/**
+ * Runs syncs requested through {@link SyncScheduler} one after another on a
+ * background thread. Requests are redelivered if the process dies during a
+ * sync.
+ */
+public class SyncService extends IntentService {
+
+    private static final String TAG = "SyncService";
+
+    static final String EXTRA_IS_MANUAL = "com.uwetrottmann.movies.sync.manual";
+
+    static final String EXTRA_REQUESTED_AT = "com.uwetrottmann.movies.sync.requestedat";
+
+    private Handler mHandler;
+
+    public SyncService() {
+        super(TAG);
+        setIntentRedelivery(true);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final boolean isManual = intent.getBooleanExtra(EXTRA_IS_MANUAL, false);
+        final Result result = SyncScheduler.runSync(getApplicationContext(), isManual,
+                intent.getLongExtra(EXTRA_REQUESTED_AT, 0));
+        if (result == null) {
+            // skipped, nothing to report
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (result == Result.SUCCESS) {
+                    // make posters available offline
+                    PosterCacheTask.runIfOnWifi(getApplicationContext());
+                }
+                if (isManual) {
+                    Toast.makeText(getApplicationContext(),
+                            result == Result.SUCCESS ? R.string.update_success
+                                    : R.string.update_failure,
+                            result == Result.SUCCESS ? Toast.LENGTH_SHORT : Toast.LENGTH_LONG)
+                            .show();
+                }
+            }
+        });
+    }
+
+}
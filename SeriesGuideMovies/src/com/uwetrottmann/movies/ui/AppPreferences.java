@@ -33,4 +33,22 @@ public class AppPreferences {
 
     public static final String KEY_NAVSELECTION = "com.uwetrottmann.movies.navselections";
 
+    public static final String KEY_TMDB_BASE_URL = "com.uwetrottmann.movies.tmdb.baseurl";
+
+    public static final String KEY_TMDB_POSTER_SIZES = "com.uwetrottmann.movies.tmdb.postersizes";
+
+    public static final String KEY_TMDB_BACKDROP_SIZES = "com.uwetrottmann.movies.tmdb.backdropsizes";
+
+    public static final String KEY_TMDB_CONFIG_UPDATED = "com.uwetrottmann.movies.tmdb.configupdated";
+
+    public static final String KEY_POSTERCACHE_LASTID = "com.uwetrottmann.movies.postercache.lastid";
+
+    public static final String KEY_SYNC_LAST = "com.uwetrottmann.movies.sync.last";
+
+    public static final String KEY_SYNC_LASTFULL = "com.uwetrottmann.movies.sync.lastfull";
+
+    public static final String KEY_SYNC_FULLDURATION = "com.uwetrottmann.movies.sync.fullduration";
+
+    public static final String KEY_SYNC_FULLBYTES = "com.uwetrottmann.movies.sync.fullbytes";
+
 }
@@ -21,6 +21,14 @@ import android.content.Intent;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.MenuItem;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.movies.service.SyncScheduler;
+import com.uwetrottmann.movies.util.ImageDownloader;
+import com.uwetrottmann.movies.util.TaskScheduler;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class BaseActivity extends SherlockFragmentActivity {
 
@@ -35,4 +43,22 @@ public class BaseActivity extends SherlockFragmentActivity {
         return false;
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        // on ICS and above ImageDownloader receives trim callbacks itself
+        if (!AndroidUtils.isICSOrHigher()) {
+            ImageDownloader.getInstance(this).onLowMemory();
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ImageDownloader.getInstance(this).dump(prefix, writer);
+        HttpTransport.getInstance().dump(prefix, writer);
+        SyncScheduler.dump(this, prefix, writer);
+        TaskScheduler.getInstance().dump(prefix, writer);
+    }
+
 }
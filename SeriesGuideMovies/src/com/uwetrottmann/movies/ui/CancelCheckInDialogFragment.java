@@ -38,6 +38,8 @@ import com.jakewharton.trakt.TraktException;
 import com.jakewharton.trakt.entities.Response;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.entities.TraktStatus;
+import com.uwetrottmann.movies.util.TaskScheduler;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
 import com.uwetrottmann.movies.util.TraktTask;
 import com.uwetrottmann.movies.util.Utils;
 
@@ -121,7 +123,8 @@ public class CancelCheckInDialogFragment extends DialogFragment {
 
                             // relaunch the trakt task which called us to
                             // try the check in again
-                            new TraktTask(context, fm, args, null).execute();
+                            TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                                    new TraktTask(context, fm, args, null), new Void[] {});
                         } else if (r.status.equalsIgnoreCase(TraktStatus.FAILURE)) {
                             // well, something went wrong
                             Toast.makeText(
@@ -132,7 +135,8 @@ public class CancelCheckInDialogFragment extends DialogFragment {
                     }
                 };
 
-                cancelCheckinTask.execute();
+                TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                        cancelCheckinTask, new Void[] {});
             }
         });
         builder.setNegativeButton(R.string.traktcheckin_wait, null);
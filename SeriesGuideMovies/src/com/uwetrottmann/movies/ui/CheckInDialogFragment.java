@@ -39,6 +39,9 @@ import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.getglueapi.GetGlue;
 import com.uwetrottmann.movies.getglueapi.GetGlue.CheckInTask;
 import com.uwetrottmann.movies.getglueapi.GetGlueAuthActivity;
+import com.uwetrottmann.movies.util.TaskScheduler;
+import com.uwetrottmann.movies.util.TaskScheduler.OnConflict;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
 import com.uwetrottmann.movies.util.TraktCredentialsDialogFragment;
 import com.uwetrottmann.movies.util.TraktTask;
 import com.uwetrottmann.movies.util.Utils;
@@ -193,9 +196,10 @@ public class CheckInDialogFragment extends SherlockDialogFragment {
                         updateCheckInButtonState();
                         return;
                     } else {
-                        // check in, use task on thread pool
-                        AndroidUtils.executeAsyncTask(new CheckInTask(imdbId, message,
-                                getActivity()), new Void[] {});
+                        // check in, ignore repeated taps while in progress
+                        TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                                "getglue-checkin", OnConflict.KEEP_EXISTING,
+                                new CheckInTask(imdbId, message, getActivity()), new Void[] {});
                     }
                 }
 
@@ -221,11 +225,12 @@ public class CheckInDialogFragment extends SherlockDialogFragment {
                         newFragment.show(ft, "progress-dialog");
 
                         // start the trakt check in task
-                        AndroidUtils.executeAsyncTask(new TraktTask(getActivity(),
-                                getFragmentManager(), null).checkin(imdbId,
-                                message), new Void[] {
-                                null
-                        });
+                        TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                                "trakt-checkin", OnConflict.KEEP_EXISTING,
+                                new TraktTask(getActivity(), getFragmentManager(), null)
+                                        .checkin(imdbId, message), new Void[] {
+                                    null
+                                });
                     }
                 }
 
@@ -24,12 +24,13 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -40,10 +41,12 @@ import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.movies.R;
+import com.uwetrottmann.movies.loaders.PagedMoviesLoader;
 import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.service.SyncScheduler;
 import com.uwetrottmann.movies.util.ImageDownloader;
-import com.uwetrottmann.movies.util.MoviesUpdateTask;
-import com.uwetrottmann.movies.util.TaskManager;
+import com.uwetrottmann.movies.util.ImagePrefetcher;
+import com.uwetrottmann.movies.util.ImagePrefetcher.ImageUrlProvider;
 import com.uwetrottmann.movies.util.TraktMoviesLoader;
 import com.uwetrottmann.movies.util.TraktMoviesLoader.TraktCategory;
 import com.uwetrottmann.movies.util.Utils;
@@ -52,8 +55,14 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
 
     private static final int MOVIES_LOADER_ID = 0;
 
+    /** Remaining rows below the visible ones when the next page is loaded */
+    private static final int NEXT_PAGE_THRESHOLD = PagedMoviesLoader.PAGE_SIZE / 2;
+
     private MoviesCursorAdapter mAdapter;
 
+    /** Position in the whole list of the first row of the adapter */
+    private int mWindowStart;
+
     public static LocalMoviesFragment newInstance(TraktCategory listCategory) {
         LocalMoviesFragment f = new LocalMoviesFragment();
 
@@ -88,6 +97,34 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
         int defaultPadding = (int) (8 * scale + 0.5f);
         list.setPadding(layoutPadding, layoutPadding, layoutPadding, defaultPadding);
         list.setFastScrollEnabled(true);
+        final ImagePrefetcher prefetcher = new ImagePrefetcher(getActivity(), mAdapter, true);
+        list.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                prefetcher.onScrollStateChanged(view, scrollState);
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                prefetcher.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+
+                // load the next or previous page before either end of the
+                // list is reached
+                if (totalItemCount == 0) {
+                    return;
+                }
+                Loader<Cursor> loader = getLoaderManager().getLoader(MOVIES_LOADER_ID);
+                if (loader == null) {
+                    return;
+                }
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - NEXT_PAGE_THRESHOLD) {
+                    ((PagedMoviesLoader) loader).loadNextPage();
+                } else if (firstVisibleItem < NEXT_PAGE_THRESHOLD) {
+                    ((PagedMoviesLoader) loader).loadPreviousPage();
+                }
+            }
+        });
 
         onListLoad(true);
     }
@@ -101,8 +138,7 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_update: {
-                TaskManager.getInstance(getActivity()).tryUpdateTask(
-                        new MoviesUpdateTask(getActivity()));
+                SyncScheduler.requestSync(getActivity(), true);
                 return true;
             }
         }
@@ -148,13 +184,26 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(getActivity(), Movies.CONTENT_URI, MoviesQuery.PROJECTION, null,
-                null, MoviesQuery.SORTORDER);
+        // the watchlist is the only list so far
+        return new PagedMoviesLoader(getActivity(), MoviesQuery.PROJECTION,
+                MoviesQuery.SELECTION_WATCHLIST, null);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mAdapter.swapCursor(data);
+        // keep showing the same movies if pages were dropped or brought back
+        final ListView list = getListView();
+        final int windowStart = ((PagedMoviesLoader) loader).getWindowStart();
+        final int shift = mWindowStart - windowStart;
+        mWindowStart = windowStart;
+        if (shift != 0 && list.getChildCount() > 0) {
+            final int position = list.getFirstVisiblePosition() + shift;
+            final int top = list.getChildAt(0).getTop();
+            mAdapter.swapCursor(data);
+            list.setSelectionFromTop(Math.max(0, position), top);
+        } else {
+            mAdapter.swapCursor(data);
+        }
 
         if (isResumed()) {
             setListShown(true);
@@ -165,10 +214,12 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        mWindowStart = 0;
         mAdapter.swapCursor(null);
     }
 
-    private static class MoviesCursorAdapter extends SimpleCursorAdapter {
+    private static class MoviesCursorAdapter extends SimpleCursorAdapter implements
+            ImageUrlProvider {
 
         private LayoutInflater mLayoutInflater;
 
@@ -176,6 +227,8 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
 
         private ImageDownloader mImageDownloader;
 
+        private int mPosterViewWidth;
+
         private final static String[] FROM = new String[] {
                 Movies.TITLE, Movies.OVERVIEW, Movies.POSTER
         };
@@ -189,6 +242,8 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
             mLayoutInflater = (LayoutInflater) context
                     .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mImageDownloader = ImageDownloader.getInstance(context);
+            mPosterViewWidth = context.getResources().getDimensionPixelSize(
+                    R.dimen.poster_list_width);
         }
 
         @Override
@@ -218,15 +273,27 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
             // set text properties immediately
             viewHolder.title.setText(mCursor.getString(MoviesQuery.TITLE));
             viewHolder.overview.setText(mCursor.getString(MoviesQuery.OVERVIEW));
-            String poster = mCursor.getString(MoviesQuery.POSTER);
-            if (poster != null) {
-                String posterPath = poster.substring(0, poster.length() - 4) + "-138.jpg";
+            String posterPath = Utils.buildTraktPosterUrl(mCursor.getString(MoviesQuery.POSTER));
+            if (posterPath != null) {
                 mImageDownloader.download(posterPath, viewHolder.poster, true);
             }
 
             return convertView;
         }
 
+        @Override
+        public String getImageUrl(int position) {
+            if (!mDataValid || !mCursor.moveToPosition(position)) {
+                return null;
+            }
+            return Utils.buildTraktPosterUrl(mCursor.getString(MoviesQuery.POSTER));
+        }
+
+        @Override
+        public int getImageWidth() {
+            return mPosterViewWidth;
+        }
+
         static class ViewHolder {
 
             public TextView title;
@@ -243,7 +310,7 @@ public class LocalMoviesFragment extends SherlockListFragment implements LoaderC
                 Movies._ID, Movies.TITLE, Movies.OVERVIEW, Movies.POSTER, Movies.TMDBID
         };
 
-        String SORTORDER = Movies.TITLE + " ASC";
+        String SELECTION_WATCHLIST = Movies.INWATCHLIST + "=1";
 
         int _ID = 0;
 
@@ -44,6 +44,7 @@ import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.entities.MovieDetails;
 import com.uwetrottmann.movies.loaders.TmdbMovieLoader;
 import com.uwetrottmann.movies.util.ImageDownloader;
+import com.uwetrottmann.movies.util.TmdbImageUrls;
 import com.uwetrottmann.tmdb.entities.Casts;
 import com.uwetrottmann.tmdb.entities.Casts.CastMember;
 import com.uwetrottmann.tmdb.entities.Casts.CrewMember;
@@ -237,8 +238,12 @@ public class MovieDetailsFragment extends SherlockListFragment implements
 
             ImageView imageView = (ImageView) view.findViewById(R.id.fanart);
             if (!TextUtils.isEmpty(movie.backdrop_path)) {
-                String url = "http://cf2.imgobject.com/t/p/w780" + movie.backdrop_path;
-                mImageDownloader.download(url, imageView, false);
+                // backdrop spans the whole width, smallest size as preview
+                TmdbImageUrls imageUrls = TmdbImageUrls.getInstance(getContext());
+                String url = imageUrls.buildBackdropUrl(movie.backdrop_path, getContext()
+                        .getResources().getDisplayMetrics().widthPixels);
+                String previewUrl = imageUrls.buildBackdropUrl(movie.backdrop_path, 0);
+                mImageDownloader.download(url, previewUrl, imageView, false);
             }
 
             return view;
@@ -27,16 +27,16 @@ import android.support.v4.app.FragmentTransaction;
 import android.widget.ArrayAdapter;
 
 import com.actionbarsherlock.app.ActionBar;
-import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.movies.R;
+import com.uwetrottmann.movies.service.SyncScheduler;
 import com.uwetrottmann.movies.ui.MoviesFragment.TmdbCategory;
 import com.uwetrottmann.movies.util.TraktCredentialsDialogFragment;
 import com.uwetrottmann.movies.util.TraktMoviesLoader.TraktCategory;
 
-public class MoviesActivity extends SherlockFragmentActivity implements
+public class MoviesActivity extends BaseActivity implements
         ActionBar.OnNavigationListener {
 
     @Override
@@ -57,6 +57,9 @@ public class MoviesActivity extends SherlockFragmentActivity implements
                 .getDefaultSharedPreferences(getApplicationContext());
         final int navItem = prefs.getInt(AppPreferences.KEY_NAVSELECTION, 0);
         actionBar.setSelectedNavigationItem(navItem);
+
+        // alarms are lost on app updates and force stops
+        SyncScheduler.ensureScheduled(this);
     }
 
     @Override
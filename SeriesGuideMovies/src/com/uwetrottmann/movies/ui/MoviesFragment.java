@@ -41,6 +41,9 @@ import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.loaders.TmdbMoviesLoader;
 import com.uwetrottmann.movies.util.ImageDownloader;
+import com.uwetrottmann.movies.util.ImagePrefetcher;
+import com.uwetrottmann.movies.util.ImagePrefetcher.ImageUrlProvider;
+import com.uwetrottmann.movies.util.TmdbImageUrls;
 import com.uwetrottmann.tmdb.entities.Movie;
 
 import java.util.List;
@@ -112,6 +115,7 @@ public class MoviesFragment extends SherlockFragment implements LoaderCallbacks<
         // basic setup of grid view
         mGrid = (GridView) getView().findViewById(android.R.id.list);
         mGrid.setOnItemClickListener(this);
+        mGrid.setOnScrollListener(new ImagePrefetcher(getActivity(), mAdapter, false));
         View emptyView = getView().findViewById(android.R.id.empty);
         if (emptyView != null) {
             mGrid.setEmptyView(emptyView);
@@ -144,16 +148,14 @@ public class MoviesFragment extends SherlockFragment implements LoaderCallbacks<
     }
 
     public void onListLoad(boolean isInitialLoad) {
-        // nag about no connectivity
+        // nag about no connectivity, cached lists are shown anyhow
         if (!AndroidUtils.isNetworkConnected(getActivity())) {
             Toast.makeText(getActivity(), getString(R.string.offline), Toast.LENGTH_LONG).show();
+        }
+        if (isInitialLoad) {
+            getLoaderManager().initLoader(MOVIES_LOADER_ID, getArguments(), this);
         } else {
-            // nag about a trakt account if trying to display auth-only lists
-            if (isInitialLoad) {
-                getLoaderManager().initLoader(MOVIES_LOADER_ID, getArguments(), this);
-            } else {
-                getLoaderManager().restartLoader(MOVIES_LOADER_ID, getArguments(), this);
-            }
+            getLoaderManager().restartLoader(MOVIES_LOADER_ID, getArguments(), this);
         }
     }
 
@@ -173,19 +175,29 @@ public class MoviesFragment extends SherlockFragment implements LoaderCallbacks<
         mAdapter.setData(null);
     }
 
-    private static class TmdbMoviesAdapter extends ArrayAdapter<Movie> {
+    private static class TmdbMoviesAdapter extends ArrayAdapter<Movie> implements
+            ImageUrlProvider {
 
         private LayoutInflater mLayoutInflater;
 
         private static final int LAYOUT = R.layout.movies_row;
 
+
         private ImageDownloader mImageDownloader;
 
+        private TmdbImageUrls mImageUrls;
+
+        /** Width of the poster views, also used to pick the poster size */
+        private int mPosterViewWidth;
+
         public TmdbMoviesAdapter(Context context) {
             super(context, LAYOUT);
             mLayoutInflater = (LayoutInflater) context
                     .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mImageDownloader = ImageDownloader.getInstance(context);
+            mImageUrls = TmdbImageUrls.getInstance(context);
+            mPosterViewWidth = context.getResources().getDimensionPixelSize(
+                    R.dimen.poster_grid_width);
         }
 
         @Override
@@ -206,15 +218,29 @@ public class MoviesFragment extends SherlockFragment implements LoaderCallbacks<
             // set text properties immediately
             Movie item = getItem(position);
             viewHolder.title.setText(item.title);
-            if (item.poster_path != null) {
-                // TODO get image path from TMDb, not static
-                String posterPath = "http://cf2.imgobject.com/t/p/w185" + item.poster_path;
-                mImageDownloader.download(posterPath, viewHolder.poster, false);
+            String posterPath = mImageUrls.buildPosterUrl(item.poster_path, mPosterViewWidth);
+            if (posterPath != null) {
+                // smallest available size as preview
+                mImageDownloader.download(posterPath,
+                        mImageUrls.buildPosterUrl(item.poster_path, 0), viewHolder.poster, false);
             }
 
             return convertView;
         }
 
+        @Override
+        public String getImageUrl(int position) {
+            if (position < 0 || position >= getCount()) {
+                return null;
+            }
+            return mImageUrls.buildPosterUrl(getItem(position).poster_path, mPosterViewWidth);
+        }
+
+        @Override
+        public int getImageWidth() {
+            return mPosterViewWidth;
+        }
+
         public void setData(List<Movie> data) {
             clear();
             if (data != null) {
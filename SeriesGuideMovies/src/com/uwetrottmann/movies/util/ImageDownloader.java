@@ -18,30 +18,51 @@
 
 package com.uwetrottmann.movies.util;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
-import android.graphics.drawable.ColorDrawable;
+import android.content.res.Resources;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Environment;
-import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
+import com.uwetrottmann.movies.util.ImageDownloaderStats.Tier;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -53,16 +74,37 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ImageDownloader {
     private static final String TAG = "ImageDownloader";
 
+    private static final boolean LOGV = false;
+
+    private static final long THUMB_CACHE_BUDGET = 4 * 1024 * 1024;
+
+    private static final int THUMB_QUALITY = 90;
+
     private static ImageDownloader _instance;
 
     private String mDiskCacheDir;
 
+    private String mThumbCacheDir;
+
+    private final Object mThumbCacheLock = new Object();
+
+    /** Size of the thumbnail disk cache in bytes, -1 until determined */
+    private long mThumbCacheSize = -1;
+
+    private final ImageDownloaderStats mStats = new ImageDownloaderStats();
+
     private ImageDownloader(Context context) {
         // TODO replace with getExternalFilesDir (but can be null!) once we are
         // min API level 8
         mDiskCacheDir = Environment.getExternalStorageDirectory().getAbsolutePath()
                 + "/Android/data/" + context.getPackageName() + "/files";
+        mThumbCacheDir = mDiskCacheDir + "/thumbs";
         createDirectories();
+
+        // before ICS activities have to forward onLowMemory()
+        if (AndroidUtils.isICSOrHigher()) {
+            context.getApplicationContext().registerComponentCallbacks(new TrimCallbacks());
+        }
     }
 
     public static synchronized ImageDownloader getInstance(Context context) {
@@ -72,8 +114,15 @@ public class ImageDownloader {
         return _instance;
     }
 
+    /**
+     * Returns cache hit counts and timings of this image downloader.
+     */
+    public ImageDownloaderStats getStats() {
+        return mStats;
+    }
+
     private void createDirectories() {
-        new File(mDiskCacheDir).mkdirs();
+        new File(mThumbCacheDir).mkdirs();
         try {
             new File(mDiskCacheDir + "/.nomedia").createNewFile();
         } catch (IOException e) {
@@ -105,22 +154,86 @@ public class ImageDownloader {
      * @param isDiskCaching Wether to cache the image to disk or just memory.
      */
     public void download(String url, ImageView imageView, boolean isDiskCaching) {
-        resetPurgeTimer();
-        Bitmap bitmap = getBitmapFromCache(url);
+        download(url, null, imageView, isDiskCaching);
+    }
+
+    /**
+     * Like {@link #download(String, ImageView, boolean)}, but if the image is
+     * not cached a smaller preview version of it is shown until the download is
+     * done. The preview is taken from the cache or downloaded alongside, so pass
+     * the URL of a small variant of the image, e.g. a lower TMDb size.
+     * 
+     * @param url The URL of the image to download.
+     * @param previewUrl The URL of a smaller version of the image, may be null.
+     * @param imageView The ImageView to bind the downloaded image to.
+     * @param isDiskCaching Wether to cache the image to disk or just memory.
+     */
+    public void download(String url, String previewUrl, ImageView imageView,
+            boolean isDiskCaching) {
+        // bitmaps are decoded for the width of the view
+        final String key = getCacheKey(url, getTargetWidth(imageView));
+        mBoundKeys.put(imageView, key);
+        Bitmap bitmap = getBitmapFromCache(key);
 
         if (bitmap == null) {
-            forceDownload(url, imageView, isDiskCaching);
+            forceDownload(url, previewUrl, imageView, isDiskCaching);
         } else {
-            cancelPotentialDownload(url, imageView);
+            cancelPotentialDownload(key, imageView);
             imageView.setImageBitmap(bitmap);
         }
     }
 
+    /**
+     * Loads the specified image into the memory (and optionally disk) cache
+     * without binding it to any view. Used to warm the caches for images that
+     * are likely to be displayed soon. Prefetches run at lowest thread
+     * priority and are canceled by {@link #cancelPrefetches()}. An image view
+     * requesting the same url at the same width later on attaches to the
+     * prefetch and raises its priority, or if it did not start yet replaces
+     * it with a regular download.
+     * 
+     * @param url The URL of the image to download.
+     * @param targetWidth The width of the image views the image will be shown
+     *            in, or 0 if they are sized dynamically.
+     * @param isDiskCaching Wether to cache the image to disk or just memory.
+     */
+    public void prefetch(String url, int targetWidth, boolean isDiskCaching) {
+        if (url == null) {
+            return;
+        }
+        final String key = getCacheKey(url, targetWidth);
+        if (mInFlightTasks.containsKey(key) || peekBitmapFromCache(key) != null) {
+            return;
+        }
+
+        BitmapDownloaderTask task = new BitmapDownloaderTask(url, isDiskCaching, true,
+                targetWidth);
+        mInFlightTasks.put(key, task);
+        TaskScheduler.getInstance().executeAsyncTask(Queue.PREFETCH, task, new String[] {
+            url
+        });
+    }
+
+    /**
+     * Cancels all prefetches no image view is waiting for.
+     */
+    public void cancelPrefetches() {
+        Iterator<BitmapDownloaderTask> iterator = mInFlightTasks.values().iterator();
+        while (iterator.hasNext()) {
+            BitmapDownloaderTask task = iterator.next();
+            if (task.mIsPrefetch && !task.hasRequesters()) {
+                iterator.remove();
+                task.cancel(true);
+            }
+        }
+    }
+
     /**
      * Same as download but the image is always downloaded and the cache is not
      * used. Kept private at the moment as its interest is not clear.
      */
-    private void forceDownload(String url, ImageView imageView, boolean isDiskCaching) {
+    private void forceDownload(String url, String previewUrl, ImageView imageView,
+            boolean isDiskCaching) {
         // State sanity: url is guaranteed to never be null in
         // DownloadedDrawable and cache keys.
         if (url == null) {
@@ -128,27 +241,96 @@ public class ImageDownloader {
             return;
         }
 
-        if (cancelPotentialDownload(url, imageView)) {
-            BitmapDownloaderTask task = new BitmapDownloaderTask(imageView, isDiskCaching);
-            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
-            imageView.setImageDrawable(downloadedDrawable);
-            task.execute(url);
+        final int targetWidth = getTargetWidth(imageView);
+        final String key = getCacheKey(url, targetWidth);
+        if (cancelPotentialDownload(key, imageView)) {
+            // attach to a download of the same image at the same width already
+            // in flight for another view, only start a new one if there is none
+            BitmapDownloaderTask task = mInFlightTasks.get(key);
+            if (task != null && task.mIsPrefetch) {
+                if (task.mIsStarted) {
+                    task.promote();
+                } else {
+                    // still queued behind other prefetches, download it in
+                    // the image queue instead
+                    task.cancel(true);
+                    task = null;
+                }
+            }
+            final boolean isNewTask = task == null;
+            if (isNewTask) {
+                task = new BitmapDownloaderTask(url, isDiskCaching, false, targetWidth);
+                mInFlightTasks.put(key, task);
+            }
+            task.addRequester(imageView);
+
+            // show a smaller version of the image until the download is done
+            Bitmap preview = null;
+            // the full image itself can not serve as its preview
+            if (previewUrl != null && !previewUrl.equals(url)) {
+                preview = peekBitmapFromCache(getCacheKey(previewUrl, 0));
+                if (preview == null) {
+                    downloadPreview(task, previewUrl, imageView, isDiskCaching);
+                }
+            }
+            imageView.setImageDrawable(new DownloadedDrawable(imageView.getResources(), task,
+                    preview));
+
+            if (isNewTask) {
+                TaskScheduler.getInstance().executeAsyncTask(Queue.IMAGE, task, new String[] {
+                    url
+                });
+            }
+        }
+    }
+
+    /**
+     * Downloads a preview for the given task. Once done, it replaces the empty
+     * placeholder if the image view is still waiting for the task.
+     */
+    private void downloadPreview(BitmapDownloaderTask task, String previewUrl,
+            ImageView imageView, boolean isDiskCaching) {
+        // previews are small, decode them in full size
+        final String previewKey = getCacheKey(previewUrl, 0);
+        BitmapDownloaderTask previewTask = mInFlightTasks.get(previewKey);
+        final boolean isNewTask = previewTask == null;
+        if (isNewTask) {
+            previewTask = new BitmapDownloaderTask(previewUrl, isDiskCaching, false, 0);
+            mInFlightTasks.put(previewKey, previewTask);
+        }
+        previewTask.addRequester(imageView);
+        task.mPreviewTask = previewTask;
+
+        if (isNewTask) {
+            // runs next to the full size download, previews are small
+            TaskScheduler.getInstance().executeAsyncTask(Queue.IMAGE, previewTask,
+                    new String[] {
+                        previewUrl
+                    });
         }
     }
 
     /**
      * Returns true if the current download has been canceled or if there was no
      * download in progress on this image view. Returns false if the download in
-     * progress deals with the same url. The download is not stopped in that
-     * case.
+     * progress deals with the same cache key. The download is not stopped in
+     * that case.
+     * <p>
+     * As downloads may be shared by multiple views, the view is only detached
+     * from a download of another url. The download itself is only canceled
+     * once no other view is waiting for it.
      */
-    private static boolean cancelPotentialDownload(String url, ImageView imageView) {
+    private boolean cancelPotentialDownload(String key, ImageView imageView) {
         BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
 
         if (bitmapDownloaderTask != null) {
-            String bitmapUrl = bitmapDownloaderTask.url;
-            if ((bitmapUrl == null) || (!bitmapUrl.equals(url))) {
-                bitmapDownloaderTask.cancel(true);
+            String bitmapKey = bitmapDownloaderTask.mKey;
+            if ((bitmapKey == null) || (!bitmapKey.equals(key))) {
+                detachFromTask(bitmapDownloaderTask, imageView);
+                // a stale preview must not replace the new image either
+                if (bitmapDownloaderTask.mPreviewTask != null) {
+                    detachFromTask(bitmapDownloaderTask.mPreviewTask, imageView);
+                }
             } else {
                 // The same URL is already being downloaded.
                 return false;
@@ -157,6 +339,40 @@ public class ImageDownloader {
         return true;
     }
 
+    /**
+     * Returns the width in pixels the image view has a fixed layout width of,
+     * or 0 if it is sized dynamically.
+     */
+    private static int getTargetWidth(ImageView imageView) {
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (params != null && params.width > 0) {
+            return params.width;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the key of the image decoded for the given width in the memory
+     * cache and of its download in flight.
+     */
+    private static String getCacheKey(String url, int targetWidth) {
+        return targetWidth > 0 ? url + "#" + targetWidth : url;
+    }
+
+    /**
+     * Removes the image view from the requesters of the given task. Cancels the
+     * task if no one else is waiting for it.
+     */
+    private void detachFromTask(BitmapDownloaderTask task, ImageView imageView) {
+        if (!task.removeRequester(imageView)) {
+            // last requester went away
+            if (mInFlightTasks.get(task.mKey) == task) {
+                mInFlightTasks.remove(task.mKey);
+            }
+            task.cancel(true);
+        }
+    }
+
     /**
      * @param imageView Any imageView
      * @return Retrieve the currently active download task (if any) associated
@@ -173,21 +389,97 @@ public class ImageDownloader {
         return null;
     }
 
-    Bitmap downloadBitmap(String urlString, boolean isDiskCaching) {
+    private File getDiskCacheFile(String urlString) {
+        String filename = Integer.toHexString(urlString.hashCode()) + "."
+                + CompressFormat.JPEG.name();
+        return new File(mDiskCacheDir + "/" + filename);
+    }
+
+    /**
+     * Whether the image is in the disk cache. Returns false if external storage
+     * is not available.
+     */
+    public boolean isDiskCached(String url) {
+        return AndroidUtils.isExtStorageAvailable() && getDiskCacheFile(url).exists();
+    }
+
+    /**
+     * Downloads the image into the disk cache without decoding it. Only the
+     * image header is parsed to make sure a valid image is cached. Blocks, so
+     * call from a background thread.
+     * 
+     * @return Whether the image is now in the disk cache.
+     */
+    public boolean downloadToDiskCache(String url) {
+        if (!AndroidUtils.isExtStorageAvailable()) {
+            return false;
+        }
+        final File imagefile = getDiskCacheFile(url);
+        if (imagefile.exists()) {
+            return true;
+        }
+
+        final File tempfile = new File(imagefile.getAbsolutePath() + ".tmp");
+        InputStream inputStream = null;
+        try {
+            inputStream = HttpTransport.getInstance().get(url, RequestClass.IMAGE);
+            AndroidUtils.copy(inputStream, tempfile);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(tempfile.getAbsolutePath(), options);
+            if (options.outWidth > 0 && options.outHeight > 0 && tempfile.renameTo(imagefile)) {
+                return true;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "I/O error while caching bitmap from " + url, e);
+        } finally {
+            AndroidUtils.closeQuietly(inputStream);
+        }
+        tempfile.delete();
+        return false;
+    }
+
+    private File getThumbCacheFile(String urlString, int width) {
+        String filename = Integer.toHexString(urlString.hashCode()) + "_" + width + "."
+                + CompressFormat.JPEG.name();
+        return new File(mThumbCacheDir + "/" + filename);
+    }
+
+    /**
+     * Downloads the image or loads it from disk. If disk caching and a target
+     * width is given, images are scaled down to that width and stored in a
+     * separate thumbnail cache, so they can be loaded without decoding the
+     * full size image next time.
+     */
+    Bitmap downloadBitmap(String urlString, boolean isDiskCaching, int targetWidth) {
 
         File imagefile = null;
+        File thumbfile = null;
         if (isDiskCaching) {
-            String filename = Integer.toHexString(urlString.hashCode()) + "."
-                    + CompressFormat.JPEG.name();
-            imagefile = new File(mDiskCacheDir + "/" + filename);
+            imagefile = getDiskCacheFile(urlString);
+            if (targetWidth > 0) {
+                thumbfile = getThumbCacheFile(urlString, targetWidth);
+            }
 
             if (AndroidUtils.isExtStorageAvailable()) {
-                // try to get bitmap from disk cache first
+                // try to get bitmap from thumbnail cache first
+                if (thumbfile != null && thumbfile.exists()) {
+                    final Bitmap bitmap = decodeSampledFile(thumbfile, 0);
+                    if (bitmap != null) {
+                        mStats.onLoaded(Tier.THUMBNAIL);
+                        // mark as recently used
+                        thumbfile.setLastModified(System.currentTimeMillis());
+                        return bitmap;
+                    }
+                }
+                // then from disk cache
                 if (imagefile.exists()) {
                     // disk cache hit
-                    final Bitmap bitmap = BitmapFactory.decodeFile(imagefile.getAbsolutePath());
+                    final Bitmap bitmap = decodeSampledFile(imagefile, targetWidth);
                     if (bitmap != null) {
-                        return bitmap;
+                        mStats.onLoaded(Tier.DISK);
+                        return storeThumbnail(bitmap, thumbfile, targetWidth);
                     }
                 }
             }
@@ -196,83 +488,334 @@ public class ImageDownloader {
         // if loading from disk fails, download it
         InputStream inputStream = null;
         try {
-            inputStream = AndroidUtils.downloadUrl(urlString);
-
-            // return BitmapFactory.decodeStream(inputStream);
-            // Bug on slow connections, fixed in future release.
-            // Bitmap bitmap = BitmapFactory.decodeStream(new
-            // FlushedInputStream(inputStream));
+            final long start = SystemClock.uptimeMillis();
+            final HttpTransport transport = HttpTransport.getInstance();
+            final HttpURLConnection conn = transport.open(urlString, RequestClass.IMAGE);
+            inputStream = transport.getInputStream(conn, RequestClass.IMAGE);
 
-            // write directly to disk
-            Bitmap bitmap;
+            // write to disk chunk by chunk while reading, decoding from
+            // memory avoids reading it back
+            File tempfile = null;
+            FileOutputStream tempOutput = null;
             if (isDiskCaching && AndroidUtils.isExtStorageAvailable()) {
-                FileOutputStream outputstream = new FileOutputStream(imagefile);
-                AndroidUtils.copy(new FlushedInputStream(inputStream), outputstream);
-                outputstream.close();
-                bitmap = BitmapFactory.decodeFile(imagefile.getAbsolutePath());
-            } else {
-                // if we have no external storage, decode directly
-                bitmap = BitmapFactory.decodeStream(new FlushedInputStream(inputStream));
+                tempfile = new File(imagefile.getAbsolutePath() + ".tmp");
+                tempOutput = new FileOutputStream(tempfile);
+                inputStream = new CopyingInputStream(inputStream, tempOutput);
+            }
+
+            // pre-size the buffer if the server told us the image size
+            final byte[] data;
+            boolean isComplete = false;
+            try {
+                data = AndroidUtils.toByteArray(inputStream, conn.getContentLength());
+                isComplete = true;
+            } finally {
+                if (tempOutput != null) {
+                    tempOutput.close();
+                    if (!isComplete) {
+                        tempfile.delete();
+                    }
+                }
             }
+            mStats.networkTime.add(SystemClock.uptimeMillis() - start);
+            mStats.bytes.add(data.length / 1024);
 
+            Bitmap bitmap = decodeSampledByteArray(data, targetWidth);
+            if (tempfile != null) {
+                // only commit images which could be decoded to the disk cache
+                if (bitmap == null || !tempfile.renameTo(imagefile)) {
+                    tempfile.delete();
+                }
+                if (bitmap != null) {
+                    bitmap = storeThumbnail(bitmap, thumbfile, targetWidth);
+                }
+            }
+
+            mStats.onLoaded(bitmap != null ? Tier.NETWORK : Tier.FAILED);
             return bitmap;
         } catch (IOException e) {
             Log.w(TAG, "I/O error while retrieving bitmap from " + urlString, e);
         } catch (Exception e) {
             Log.w(TAG, "Error while retrieving bitmap from " + urlString, e);
         } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    Log.w(TAG, "Error while retrieving bitmap from " + urlString, e);
-                }
-            }
+            AndroidUtils.closeQuietly(inputStream);
         }
+        mStats.onLoaded(Tier.FAILED);
         return null;
     }
 
-    /*
-     * An InputStream that skips the exact number of bytes provided, unless it
-     * reaches EOF.
+    /**
+     * Writes all data read from the stream to another stream as well, so a
+     * download is stored to disk in the same pass it is read into memory.
      */
-    static class FlushedInputStream extends FilterInputStream {
-        public FlushedInputStream(InputStream inputStream) {
-            super(inputStream);
+    private static class CopyingInputStream extends FilterInputStream {
+
+        private final OutputStream mCopy;
+
+        CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                mCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int n = in.read(buffer, offset, count);
+            if (n > 0) {
+                mCopy.write(buffer, offset, n);
+            }
+            return n;
         }
 
         @Override
         public long skip(long n) throws IOException {
-            long totalBytesSkipped = 0L;
-            while (totalBytesSkipped < n) {
-                long bytesSkipped = in.skip(n - totalBytesSkipped);
-                if (bytesSkipped == 0L) {
-                    int b = read();
-                    if (b < 0) {
-                        break; // we reached EOF
-                    } else {
-                        bytesSkipped = 1; // we read one byte
+            if (n <= 0) {
+                return 0;
+            }
+            // skipped data has to be copied as well
+            final byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            final int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the image data, subsampled if it is at least twice as wide as
+     * the target width. Pass a target width of 0 to decode in full size.
+     */
+    private Bitmap decodeSampledByteArray(byte[] data, int targetWidth) {
+        final long start = SystemClock.uptimeMillis();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (targetWidth > 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            options.inSampleSize = calculateInSampleSize(options.outWidth, targetWidth);
+            options.inJustDecodeBounds = false;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        mStats.decodeTime.add(SystemClock.uptimeMillis() - start);
+        return bitmap;
+    }
+
+    /**
+     * Decodes the image file, subsampled if it is at least twice as wide as the
+     * target width. Pass a target width of 0 to decode in full size.
+     */
+    private Bitmap decodeSampledFile(File imagefile, int targetWidth) {
+        final long start = SystemClock.uptimeMillis();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (targetWidth > 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(imagefile.getAbsolutePath(), options);
+            options.inSampleSize = calculateInSampleSize(options.outWidth, targetWidth);
+            options.inJustDecodeBounds = false;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(imagefile.getAbsolutePath(), options);
+        mStats.decodeTime.add(SystemClock.uptimeMillis() - start);
+        return bitmap;
+    }
+
+    /**
+     * Returns the largest power of two to divide the width by and stay at or
+     * above the target width.
+     */
+    private static int calculateInSampleSize(int width, int targetWidth) {
+        int inSampleSize = 1;
+        if (targetWidth > 0) {
+            while (width / (inSampleSize * 2) >= targetWidth) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Scales the bitmap down to the target width and stores it in the
+     * thumbnail cache. Returns the scaled bitmap, or the given one if it is not
+     * wider than the target width or thumbfile is null.
+     */
+    private Bitmap storeThumbnail(Bitmap bitmap, File thumbfile, int targetWidth) {
+        if (thumbfile == null || bitmap.getWidth() <= targetWidth) {
+            return bitmap;
+        }
+
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, targetWidth,
+                bitmap.getHeight() * targetWidth / bitmap.getWidth(), true);
+        if (thumbnail != bitmap) {
+            bitmap.recycle();
+        }
+
+        final File tempfile = new File(thumbfile.getAbsolutePath() + ".tmp");
+        try {
+            FileOutputStream outputstream = new FileOutputStream(tempfile);
+            try {
+                thumbnail.compress(CompressFormat.JPEG, THUMB_QUALITY, outputstream);
+            } finally {
+                outputstream.close();
+            }
+            if (tempfile.renameTo(thumbfile)) {
+                onThumbnailAdded(thumbfile.length());
+            } else {
+                tempfile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store thumbnail " + thumbfile, e);
+            tempfile.delete();
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Keeps track of the thumbnail cache size. Once it exceeds its budget the
+     * least recently used thumbnails are deleted until it is back at three
+     * quarters of its budget.
+     */
+    private void onThumbnailAdded(long length) {
+        synchronized (mThumbCacheLock) {
+            File[] thumbnails = null;
+            if (mThumbCacheSize == -1) {
+                thumbnails = new File(mThumbCacheDir).listFiles();
+                mThumbCacheSize = 0;
+                if (thumbnails != null) {
+                    for (File file : thumbnails) {
+                        mThumbCacheSize += file.length();
                     }
                 }
-                totalBytesSkipped += bytesSkipped;
+            } else {
+                mThumbCacheSize += length;
+            }
+
+            if (mThumbCacheSize <= THUMB_CACHE_BUDGET) {
+                return;
+            }
+
+            if (thumbnails == null) {
+                thumbnails = new File(mThumbCacheDir).listFiles();
+                if (thumbnails == null) {
+                    return;
+                }
+            }
+            Arrays.sort(thumbnails, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long left = lhs.lastModified();
+                    long right = rhs.lastModified();
+                    return left < right ? -1 : (left == right ? 0 : 1);
+                }
+            });
+            for (File file : thumbnails) {
+                if (mThumbCacheSize <= THUMB_CACHE_BUDGET * 3 / 4) {
+                    break;
+                }
+                long fileLength = file.length();
+                if (file.delete()) {
+                    mThumbCacheSize -= fileLength;
+                }
             }
-            return totalBytesSkipped;
         }
     }
 
     /**
-     * The actual AsyncTask that will asynchronously download the image.
+     * Downloads currently in flight, keyed by cache key. Only accessed from the UI
+     * thread, so no synchronization is needed.
+     */
+    private final HashMap<String, BitmapDownloaderTask> mInFlightTasks = new HashMap<String, BitmapDownloaderTask>();
+
+    /**
+     * The actual AsyncTask that will asynchronously download the image. One
+     * task may serve multiple image views requesting the same url at the same
+     * width.
      */
     class BitmapDownloaderTask extends AsyncTask<String, Void, Bitmap> {
-        private String url;
+        private final String url;
+
+        private final String mKey;
 
-        private final WeakReference<ImageView> imageViewReference;
+        private final ArrayList<WeakReference<ImageView>> mRequesters = new ArrayList<WeakReference<ImageView>>();
 
         private final boolean mIsDiskCaching;
 
-        public BitmapDownloaderTask(ImageView imageView, boolean isDiskCaching) {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+        /** Whether no image view requested the image yet, see {@link #promote()} */
+        private volatile boolean mIsPrefetch;
+
+        private volatile boolean mIsStarted;
+
+        /** Id of the thread running the download, 0 if not running */
+        private volatile int mThreadId;
+
+        private final long mStartTime;
+
+        private final int mTargetWidth;
+
+        /** Download of a smaller version of the image, if any */
+        BitmapDownloaderTask mPreviewTask;
+
+        public BitmapDownloaderTask(String url, boolean isDiskCaching, boolean isPrefetch,
+                int targetWidth) {
+            this.url = url;
+            mKey = getCacheKey(url, targetWidth);
             mIsDiskCaching = isDiskCaching;
+            mIsPrefetch = isPrefetch;
+            mTargetWidth = targetWidth;
+            mStartTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Adds an image view which should receive the downloaded image.
+         */
+        void addRequester(ImageView imageView) {
+            mRequesters.add(new WeakReference<ImageView>(imageView));
+        }
+
+        /**
+         * Removes the given image view from the list of requesters, also drops
+         * requesters which were garbage collected.
+         * 
+         * @return Whether there are still requesters waiting for this task.
+         */
+        boolean removeRequester(ImageView imageView) {
+            Iterator<WeakReference<ImageView>> iterator = mRequesters.iterator();
+            while (iterator.hasNext()) {
+                ImageView requester = iterator.next().get();
+                if (requester == null || requester == imageView) {
+                    iterator.remove();
+                }
+            }
+            return !mRequesters.isEmpty();
+        }
+
+        /**
+         * Whether any image view is still waiting for this task.
+         */
+        boolean hasRequesters() {
+            return removeRequester(null);
+        }
+
+        /**
+         * Turns a running prefetch into a download for a visible view, which
+         * is no longer canceled with prefetches and runs at normal background
+         * priority.
+         */
+        void promote() {
+            mIsPrefetch = false;
+            final int threadId = mThreadId;
+            if (threadId != 0) {
+                Process.setThreadPriority(threadId, Process.THREAD_PRIORITY_BACKGROUND);
+            }
         }
 
         /**
@@ -280,38 +823,72 @@ public class ImageDownloader {
          */
         @Override
         protected Bitmap doInBackground(String... params) {
-            url = params[0];
-            return downloadBitmap(url, mIsDiskCaching);
+            mIsStarted = true;
+            mThreadId = Process.myTid();
+            try {
+                if (mIsPrefetch) {
+                    // do not compete with downloads for visible views
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    if (!mIsPrefetch) {
+                        // promoted in the meantime
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    }
+                }
+                return downloadBitmap(url, mIsDiskCaching, mTargetWidth);
+            } finally {
+                mThreadId = 0;
+            }
         }
 
         /**
-         * Once the image is downloaded, associates it to the imageView
+         * Once the image is downloaded, associates it to all image views still
+         * waiting for it.
          */
         @Override
         protected void onPostExecute(Bitmap bitmap) {
+            if (mInFlightTasks.get(mKey) == this) {
+                mInFlightTasks.remove(mKey);
+            }
+
             if (isCancelled()) {
                 bitmap = null;
             }
 
-            addBitmapToCache(url, bitmap);
+            addBitmapToCache(mKey, bitmap);
 
-            if (imageViewReference != null) {
+            if (LOGV) {
+                Log.v(TAG, "Time to display " + url + ": "
+                        + (SystemClock.uptimeMillis() - mStartTime) + " ms");
+            }
+
+            for (WeakReference<ImageView> imageViewReference : mRequesters) {
                 ImageView imageView = imageViewReference.get();
                 BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
                 // Change bitmap only if this process is still associated with
                 // it
-                // Or if we don't use any bitmap to task association
-                // (NO_DOWNLOADED_DRAWABLE mode)
                 if (this == bitmapDownloaderTask) {
+                    // on failure show the error state, not the preview as if
+                    // it were the image
                     imageView.setImageBitmap(bitmap);
+                    // the preview is no longer needed for this view
+                    if (mPreviewTask != null) {
+                        detachFromTask(mPreviewTask, imageView);
+                    }
+                } else if (bitmapDownloaderTask != null
+                        && bitmapDownloaderTask.mPreviewTask == this && bitmap != null) {
+                    // this is the preview for the download still in progress
+                    imageView.setImageDrawable(new DownloadedDrawable(imageView.getResources(),
+                            bitmapDownloaderTask, bitmap));
                 }
             }
+            mRequesters.clear();
         }
     }
 
     /**
      * A fake Drawable that will be attached to the imageView while the download
-     * is in progress.
+     * is in progress. Displays a preview bitmap if one is available, otherwise
+     * it is transparent.
      * <p>
      * Contains a reference to the actual download task, so that a download task
      * can be stopped if a new binding is required, and makes sure that only the
@@ -319,11 +896,12 @@ public class ImageDownloader {
      * download finish order.
      * </p>
      */
-    static class DownloadedDrawable extends ColorDrawable {
+    static class DownloadedDrawable extends BitmapDrawable {
         private final WeakReference<BitmapDownloaderTask> bitmapDownloaderTaskReference;
 
-        public DownloadedDrawable(BitmapDownloaderTask bitmapDownloaderTask) {
-            super(Color.TRANSPARENT);
+        public DownloadedDrawable(Resources res, BitmapDownloaderTask bitmapDownloaderTask,
+                Bitmap preview) {
+            super(res, preview);
             bitmapDownloaderTaskReference = new WeakReference<BitmapDownloaderTask>(
                     bitmapDownloaderTask);
         }
@@ -340,7 +918,12 @@ public class ImageDownloader {
 
     private static final int HARD_CACHE_CAPACITY = 10;
 
-    private static final int DELAY_BEFORE_PURGE = 5 * 1000; // in milliseconds
+    /** Maximum number of cached bitmaps kept for views on screen when trimming */
+    private static final int PINNED_CAPACITY = 12;
+
+    private static final int OCCUPANCY_HISTORY_SIZE = 32;
+
+    private static final long OCCUPANCY_SAMPLE_INTERVAL = 10 * DateUtils.SECOND_IN_MILLIS;
 
     // Hard cache, with a fixed maximum capacity and a life duration
     @SuppressWarnings("serial")
@@ -362,75 +945,252 @@ public class ImageDownloader {
     private final static ConcurrentHashMap<String, SoftReference<Bitmap>> sSoftBitmapCache = new ConcurrentHashMap<String, SoftReference<Bitmap>>(
             HARD_CACHE_CAPACITY / 2);
 
-    private final Handler purgeHandler = new Handler();
+    // The cache key last bound to each image view, used to find bitmaps on
+    // screen
+    private final WeakHashMap<ImageView, String> mBoundKeys = new WeakHashMap<ImageView, String>();
 
-    private final Runnable purger = new Runnable() {
-        public void run() {
-            clearCache();
-        }
-    };
+    private final LinkedList<OccupancySample> mOccupancyHistory = new LinkedList<OccupancySample>();
+
+    private long mLastOccupancySample;
 
     /**
      * Adds this bitmap to the cache.
      * 
      * @param bitmap The newly downloaded bitmap.
      */
-    private void addBitmapToCache(String url, Bitmap bitmap) {
+    private void addBitmapToCache(String key, Bitmap bitmap) {
         if (bitmap != null) {
             synchronized (sHardBitmapCache) {
-                sHardBitmapCache.put(url, bitmap);
+                sHardBitmapCache.put(key, bitmap);
+            }
+            if (SystemClock.uptimeMillis() - mLastOccupancySample > OCCUPANCY_SAMPLE_INTERVAL) {
+                recordOccupancy("add");
             }
         }
     }
 
     /**
-     * @param url The URL of the image that will be retrieved from the cache.
+     * Looks up an image requested for display, counting hits and misses in
+     * the stats.
+     * 
+     * @param key The cache key of the image, see {@link #getCacheKey}.
      * @return The cached bitmap or null if it was not found.
      */
-    private Bitmap getBitmapFromCache(String url) {
+    private Bitmap getBitmapFromCache(String key) {
+        return getBitmapFromCache(key, true);
+    }
+
+    /**
+     * Like {@link #getBitmapFromCache(String)}, but not counted in the stats.
+     * For speculative lookups like prefetches and previews, which would skew
+     * the hit rates.
+     */
+    private Bitmap peekBitmapFromCache(String key) {
+        return getBitmapFromCache(key, false);
+    }
+
+    private Bitmap getBitmapFromCache(String key, boolean isRecordingStats) {
         // First try the hard reference cache
         synchronized (sHardBitmapCache) {
-            final Bitmap bitmap = sHardBitmapCache.get(url);
+            final Bitmap bitmap = sHardBitmapCache.get(key);
             if (bitmap != null) {
                 // Bitmap found in hard cache
                 // Move element to first position, so that it is removed last
-                sHardBitmapCache.remove(url);
-                sHardBitmapCache.put(url, bitmap);
+                sHardBitmapCache.remove(key);
+                sHardBitmapCache.put(key, bitmap);
+                if (isRecordingStats) {
+                    mStats.onLoaded(Tier.HARD);
+                }
                 return bitmap;
             }
         }
 
         // Then try the soft reference cache
-        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(url);
+        SoftReference<Bitmap> bitmapReference = sSoftBitmapCache.get(key);
         if (bitmapReference != null) {
             final Bitmap bitmap = bitmapReference.get();
             if (bitmap != null) {
                 // Bitmap found in soft cache
+                if (isRecordingStats) {
+                    mStats.onLoaded(Tier.SOFT);
+                }
                 return bitmap;
             } else {
                 // Soft reference has been Garbage Collected
-                sSoftBitmapCache.remove(url);
+                sSoftBitmapCache.remove(key);
             }
         }
 
+        if (isRecordingStats) {
+            mStats.onMemoryMiss();
+        }
         return null;
     }
 
     /**
      * Clears the image cache used internally to improve performance. Note that
-     * for memory efficiency reasons, the cache will automatically be cleared
-     * after a certain inactivity delay.
+     * for memory efficiency reasons, the cache will automatically be trimmed
+     * if the system runs low on memory.
      */
     public void clearCache() {
-        sHardBitmapCache.clear();
+        synchronized (sHardBitmapCache) {
+            sHardBitmapCache.clear();
+        }
         sSoftBitmapCache.clear();
     }
 
     /**
-     * Allow a new delay before the automatic cache clear is done.
+     * Shrinks the memory cache depending on the given
+     * {@link ComponentCallbacks2} trim level. Bitmaps of views currently on
+     * screen are kept unless the process is about to be killed, they can not be
+     * garbage collected anyhow. Must be called on the UI thread.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            clearCache();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sSoftBitmapCache.clear();
+            trimHardCache(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sSoftBitmapCache.clear();
+            trimHardCache(HARD_CACHE_CAPACITY / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            sSoftBitmapCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            // still in the foreground, only drop the oldest bitmaps
+            sSoftBitmapCache.clear();
+            trimHardCache(HARD_CACHE_CAPACITY * 3 / 4);
+        }
+
+        recordOccupancy("trim " + level);
+    }
+
+    /**
+     * Call if the system runs low on memory, for example from
+     * {@link android.app.Activity#onLowMemory()}.
+     */
+    public void onLowMemory() {
+        trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
+    /**
+     * Removes the least recently used bitmaps from the hard cache until at
+     * most maxSize remain, not counting bitmaps of views on screen.
+     */
+    private void trimHardCache(int maxSize) {
+        final HashSet<String> pinnedKeys = getPinnedKeys();
+        synchronized (sHardBitmapCache) {
+            int unpinnedCount = 0;
+            for (String key : sHardBitmapCache.keySet()) {
+                if (!pinnedKeys.contains(key)) {
+                    unpinnedCount++;
+                }
+            }
+
+            // iteration order is least recently used first
+            Iterator<String> iterator = sHardBitmapCache.keySet().iterator();
+            while (unpinnedCount > maxSize && iterator.hasNext()) {
+                if (!pinnedKeys.contains(iterator.next())) {
+                    iterator.remove();
+                    unpinnedCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cache keys of up to {@link #PINNED_CAPACITY} images bound to
+     * views which are currently shown.
      */
-    private void resetPurgeTimer() {
-        purgeHandler.removeCallbacks(purger);
-        purgeHandler.postDelayed(purger, DELAY_BEFORE_PURGE);
+    private HashSet<String> getPinnedKeys() {
+        final HashSet<String> pinnedKeys = new HashSet<String>();
+        for (Map.Entry<ImageView, String> entry : mBoundKeys.entrySet()) {
+            if (pinnedKeys.size() >= PINNED_CAPACITY) {
+                break;
+            }
+            ImageView imageView = entry.getKey();
+            if (imageView != null && imageView.isShown()) {
+                pinnedKeys.add(entry.getValue());
+            }
+        }
+        return pinnedKeys;
+    }
+
+    private void recordOccupancy(String reason) {
+        OccupancySample sample = new OccupancySample();
+        sample.time = System.currentTimeMillis();
+        sample.reason = reason;
+        synchronized (sHardBitmapCache) {
+            sample.hardCount = sHardBitmapCache.size();
+            for (Bitmap bitmap : sHardBitmapCache.values()) {
+                sample.hardBytes += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        sample.softCount = sSoftBitmapCache.size();
+
+        synchronized (mOccupancyHistory) {
+            mOccupancyHistory.add(sample);
+            if (mOccupancyHistory.size() > OCCUPANCY_HISTORY_SIZE) {
+                mOccupancyHistory.removeFirst();
+            }
+        }
+        mLastOccupancySample = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Prints the recent memory cache occupancy and cache statistics, for
+     * example from {@link android.app.Activity#dump} so it shows up in
+     * {@code adb shell dumpsys activity}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        mStats.dump(prefix, writer);
+
+        writer.print(prefix);
+        writer.println("ImageDownloader memory cache (time, reason, hard, hard KB, soft):");
+        synchronized (mOccupancyHistory) {
+            for (OccupancySample sample : mOccupancyHistory) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(DateUtils.formatElapsedTime((sample.time / 1000) % 86400));
+                writer.print(" " + sample.reason);
+                writer.print(" " + sample.hardCount + "/" + HARD_CACHE_CAPACITY);
+                writer.print(" " + sample.hardBytes / 1024);
+                writer.println(" " + sample.softCount);
+            }
+        }
+    }
+
+    private static class OccupancySample {
+        long time;
+
+        String reason;
+
+        int hardCount;
+
+        long hardBytes;
+
+        int softCount;
+    }
+
+    /**
+     * Trims the memory cache on ICS and above, instantiate only there.
+     */
+    @TargetApi(14)
+    private class TrimCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            ImageDownloader.this.onLowMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
     }
 }
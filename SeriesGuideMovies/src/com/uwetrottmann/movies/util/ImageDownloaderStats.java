@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts cache hits per tier of {@link ImageDownloader} and keeps histograms
+ * of network time, decode time and downloaded bytes per image. Thread-safe.
+ */
+public class ImageDownloaderStats {
+
+    public enum Tier {
+        HARD, SOFT, THUMBNAIL, DISK, NETWORK, FAILED
+    }
+
+    private final AtomicInteger[] mTierCounts;
+
+    private final AtomicInteger mMemoryMisses = new AtomicInteger();
+
+    final Histogram networkTime = new Histogram("Network time (ms)", new long[] {
+            50, 100, 250, 500, 1000, 2000, 5000
+    });
+
+    final Histogram decodeTime = new Histogram("Decode time (ms)", new long[] {
+            5, 10, 20, 50, 100, 200, 500
+    });
+
+    final Histogram bytes = new Histogram("Bytes per image (KB)", new long[] {
+            10, 25, 50, 100, 200, 500, 1000
+    });
+
+    ImageDownloaderStats() {
+        mTierCounts = new AtomicInteger[Tier.values().length];
+        for (int i = 0; i < mTierCounts.length; i++) {
+            mTierCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Records from which tier an image was served.
+     */
+    void onLoaded(Tier tier) {
+        mTierCounts[tier.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Records that an image was in neither memory cache.
+     */
+    void onMemoryMiss() {
+        mMemoryMisses.incrementAndGet();
+    }
+
+    public int getCount(Tier tier) {
+        return mTierCounts[tier.ordinal()].get();
+    }
+
+    public void reset() {
+        for (AtomicInteger count : mTierCounts) {
+            count.set(0);
+        }
+        mMemoryMisses.set(0);
+        networkTime.reset();
+        decodeTime.reset();
+        bytes.reset();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        int memoryHits = getCount(Tier.HARD) + getCount(Tier.SOFT);
+        int memoryLookups = memoryHits + mMemoryMisses.get();
+        writer.print(prefix);
+        writer.println("ImageDownloader stats:");
+        writer.print(prefix);
+        writer.println("  Memory hit rate: " + percentage(memoryHits, memoryLookups) + "% of "
+                + memoryLookups);
+        for (Tier tier : Tier.values()) {
+            writer.print(prefix);
+            writer.println("  " + tier + ": " + getCount(tier));
+        }
+        networkTime.dump(prefix + "  ", writer);
+        decodeTime.dump(prefix + "  ", writer);
+        bytes.dump(prefix + "  ", writer);
+    }
+
+    private static int percentage(int count, int total) {
+        return total == 0 ? 0 : count * 100 / total;
+    }
+
+    /**
+     * A histogram with fixed bucket upper bounds, the last bucket collects all
+     * larger values.
+     */
+    static class Histogram {
+
+        private final String mName;
+
+        private final long[] mBounds;
+
+        private final int[] mCounts;
+
+        private long mSum;
+
+        private int mTotal;
+
+        Histogram(String name, long[] bounds) {
+            mName = name;
+            mBounds = bounds;
+            mCounts = new int[bounds.length + 1];
+        }
+
+        synchronized void add(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mSum += value;
+            mTotal++;
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mSum = 0;
+            mTotal = 0;
+        }
+
+        synchronized void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println(mName + ": n=" + mTotal + " avg=" + (mTotal == 0 ? 0 : mSum / mTotal));
+            for (int i = 0; i < mCounts.length; i++) {
+                writer.print(prefix);
+                writer.print(i < mBounds.length ? "  <=" + mBounds[i] : "  >"
+                        + mBounds[mBounds.length - 1]);
+                writer.println(": " + mCounts[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+/**
+ * Watches scrolling of an {@link AbsListView} and warms the image caches of
+ * {@link ImageDownloader} for the next few items in scroll direction. Nothing
+ * is prefetched while flinging fast, pending prefetches are canceled if the
+ * scroll direction changes. On metered networks only a few items are
+ * prefetched once scrolling has stopped.
+ */
+public class ImagePrefetcher implements OnScrollListener {
+
+    /**
+     * Supplies the image url for an adapter position.
+     */
+    public interface ImageUrlProvider {
+        /**
+         * Returns the url of the image displayed for the item at the given
+         * position or null if there is none.
+         */
+        String getImageUrl(int position);
+
+        /**
+         * Returns the layout width in pixels of the image views the images are
+         * displayed in, or 0 if they are sized dynamically.
+         */
+        int getImageWidth();
+    }
+
+    private static final int PREFETCH_DISTANCE = 8;
+
+    private static final int PREFETCH_DISTANCE_METERED = 2;
+
+    /** Items per second above which the user is unlikely to look at items */
+    private static final float MAX_PREFETCH_VELOCITY = 20f;
+
+    private static final int DIRECTION_NONE = 0;
+
+    private static final int DIRECTION_DOWN = 1;
+
+    private static final int DIRECTION_UP = -1;
+
+    private final Context mContext;
+
+    private final ImageDownloader mImageDownloader;
+
+    private final ImageUrlProvider mUrlProvider;
+
+    private final boolean mIsDiskCaching;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+
+    private boolean mIsMetered;
+
+    private int mDirection = DIRECTION_NONE;
+
+    private int mLastFirstVisibleItem = -1;
+
+    private long mLastScrollTime;
+
+    private float mVelocity;
+
+    private int mPrefetchedFrom = -1;
+
+    private int mPrefetchedTo = -1;
+
+    public ImagePrefetcher(Context context, ImageUrlProvider urlProvider, boolean isDiskCaching) {
+        mContext = context.getApplicationContext();
+        mImageDownloader = ImageDownloader.getInstance(context);
+        mUrlProvider = urlProvider;
+        mIsDiskCaching = isDiskCaching;
+        mIsMetered = AndroidUtils.isNetworkMetered(mContext);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (mScrollState == SCROLL_STATE_IDLE && scrollState != SCROLL_STATE_IDLE) {
+            // network may have changed since last time
+            mIsMetered = AndroidUtils.isNetworkMetered(mContext);
+        }
+        mScrollState = scrollState;
+
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mVelocity = 0;
+            prefetch(view.getFirstVisiblePosition(), view.getChildCount(), view.getCount());
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (totalItemCount == 0 || visibleItemCount == 0) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisibleItem != -1 && firstVisibleItem != mLastFirstVisibleItem) {
+            int direction = firstVisibleItem > mLastFirstVisibleItem ? DIRECTION_DOWN
+                    : DIRECTION_UP;
+            if (direction != mDirection) {
+                // user turned around, items ahead are no longer needed
+                mImageDownloader.cancelPrefetches();
+                mPrefetchedFrom = -1;
+                mPrefetchedTo = -1;
+                mDirection = direction;
+            }
+
+            long elapsed = now - mLastScrollTime;
+            if (elapsed > 0) {
+                mVelocity = Math.abs(firstVisibleItem - mLastFirstVisibleItem) * 1000f / elapsed;
+            }
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastScrollTime = now;
+
+        // on metered networks only prefetch once the list comes to rest
+        if (!mIsMetered && mScrollState != SCROLL_STATE_IDLE
+                && mVelocity < MAX_PREFETCH_VELOCITY) {
+            prefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+
+    private void prefetch(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mDirection == DIRECTION_NONE) {
+            return;
+        }
+
+        final int distance = mIsMetered ? PREFETCH_DISTANCE_METERED : PREFETCH_DISTANCE;
+        int from;
+        int to;
+        if (mDirection == DIRECTION_DOWN) {
+            from = firstVisibleItem + visibleItemCount;
+            to = Math.min(from + distance, totalItemCount) - 1;
+        } else {
+            to = firstVisibleItem - 1;
+            from = Math.max(to - distance + 1, 0);
+        }
+
+        // request items closest to the visible ones first
+        for (int i = 0; i <= to - from; i++) {
+            int position = mDirection == DIRECTION_DOWN ? from + i : to - i;
+            // skip items requested during the last run
+            if (position >= mPrefetchedFrom && position <= mPrefetchedTo) {
+                continue;
+            }
+            mImageDownloader.prefetch(mUrlProvider.getImageUrl(position),
+                    mUrlProvider.getImageWidth(), mIsDiskCaching);
+        }
+        mPrefetchedFrom = from;
+        mPrefetchedTo = to;
+    }
+
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.uwetrottmann.movies.provider.MoviesContract;
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.util.TraktLibraryReader.LibraryList;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Writes synced movies to the database in chunks of bounded size, each in its
+ * own short transaction, as they come in. Nothing is kept in memory per movie
+ * beyond the pending chunk, so memory use does not grow with the library.
+ * <p>
+ * Each chunk is compared with the database by fingerprint, only new or
+ * changed movie details are written, keeping the list flags they had. The
+ * lists each movie was seen in are recorded in the database under the
+ * generation of this sync, see {@link Movies#buildSyncUri}. Once all lists
+ * were read, {@link #finish(boolean)} removes movies that are in none of them
+ * and copies the recorded lists to the list flags. If the sync dies midway,
+ * nothing is removed and the next sync picks up where this one stopped.
+ * <p>
+ * Movies may be added from multiple threads, full chunks are written outside
+ * of the lock. Call {@link #finish(boolean)} once all adds have returned.
+ */
+class LibrarySyncWriter {
+
+    private static final String TAG = "LibrarySyncWriter";
+
+    /** Maximum number of movies written in one transaction. */
+    private static final int CHUNK_SIZE = 100;
+
+    private static final String[] CHUNK_PROJECTION = new String[] {
+            Movies.TMDBID, Movies.FINGERPRINT, Movies.WATCHED, Movies.INWATCHLIST,
+            Movies.INCOLLECTION, Movies.RATING
+    };
+
+    private final Context mContext;
+
+    /** Identifies this sync, larger than the generation of earlier ones */
+    private final long mGeneration;
+
+    private final int mLibrarySize;
+
+    private final ArrayList<PendingMovie> mChunk = Lists.newArrayList();
+
+    private int mSeenCount;
+
+    private int mInserted;
+
+    private int mUpdated;
+
+    private int mUnchanged;
+
+    private int mFlagsChanged;
+
+    private int mDeleted;
+
+    /**
+     * Picks the generation of this sync, following the last one in the
+     * database.
+     */
+    LibrarySyncWriter(Context context) {
+        mContext = context;
+
+        long lastGeneration = 0;
+        int librarySize = 0;
+        final Cursor movies = context.getContentResolver().query(Movies.CONTENT_URI,
+                new String[] {
+                        "COUNT(*)", "MAX(" + Movies.SYNC_GENERATION + ")"
+                }, null, null, null);
+        if (movies != null) {
+            if (movies.moveToFirst()) {
+                librarySize = movies.getInt(0);
+                lastGeneration = movies.getLong(1);
+            }
+            movies.close();
+        }
+        mLibrarySize = librarySize;
+        mGeneration = lastGeneration + 1;
+    }
+
+    /**
+     * Adds a movie read from the given list, as returned by
+     * {@link TraktLibraryReader#next()}. Movies in multiple lists may be
+     * added once per list.
+     */
+    void add(LibraryList list, ContentValues movie) {
+        final String tmdbId = movie.getAsString(Movies.TMDBID);
+        if (tmdbId == null) {
+            return;
+        }
+        final Membership membership = new Membership();
+        membership.add(list, movie);
+        queue(new PendingMovie(tmdbId, movie, membership, list == LibraryList.RATINGS));
+    }
+
+    /**
+     * Adds a movie with all of its list flags known, for example from its
+     * summary. Movies in none of the lists are removed.
+     */
+    void put(ContentValues movie, Membership membership) {
+        final String tmdbId = movie.getAsString(Movies.TMDBID);
+        if (tmdbId == null) {
+            return;
+        }
+        queue(new PendingMovie(tmdbId, membership.isInLibrary() ? movie : null, membership,
+                true));
+    }
+
+    private void queue(PendingMovie movie) {
+        PendingMovie[] fullChunk = null;
+        synchronized (this) {
+            mChunk.add(movie);
+            if (mChunk.size() == CHUNK_SIZE) {
+                fullChunk = takeChunk();
+            }
+        }
+        writeChunk(fullChunk);
+    }
+
+    /**
+     * Returns and clears the queued movies, null if there are none.
+     */
+    private synchronized PendingMovie[] takeChunk() {
+        if (mChunk.isEmpty()) {
+            return null;
+        }
+        final PendingMovie[] chunk = mChunk.toArray(new PendingMovie[mChunk.size()]);
+        mChunk.clear();
+        return chunk;
+    }
+
+    /**
+     * Writes the details of new or changed movies of the chunk, then records
+     * the lists the movies were seen in.
+     */
+    private void writeChunk(PendingMovie[] chunk) {
+        if (chunk == null) {
+            return;
+        }
+
+        // read what the database knows about the movies of this chunk
+        final StringBuilder selection = new StringBuilder(Movies.TMDBID).append(" IN (");
+        final String[] selectionArgs = new String[chunk.length];
+        for (int i = 0; i < chunk.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = chunk[i].mTmdbId;
+        }
+        selection.append(")");
+        final HashMap<String, String> fingerprints = Maps.newHashMap();
+        final HashMap<String, Membership> memberships = Maps.newHashMap();
+        final Cursor movies = mContext.getContentResolver().query(Movies.CONTENT_URI,
+                CHUNK_PROJECTION, selection.toString(), selectionArgs, null);
+        if (movies != null) {
+            while (movies.moveToNext()) {
+                final String tmdbId = movies.getString(0);
+                fingerprints.put(tmdbId, movies.getString(1));
+                final Membership membership = new Membership();
+                membership.isWatched = movies.getInt(2) == 1;
+                membership.isInWatchlist = movies.getInt(3) == 1;
+                membership.isInCollection = movies.getInt(4) == 1;
+                membership.rating = movies.getString(5);
+                memberships.put(tmdbId, membership);
+            }
+            movies.close();
+        }
+
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        final ArrayList<ContentValues> details = Lists.newArrayList();
+        final HashSet<String> written = new HashSet<String>();
+        final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+        for (PendingMovie movie : chunk) {
+            // the same movie may be in a chunk once per list
+            if (movie.mDetails != null && written.add(movie.mTmdbId)) {
+                final ContentValues values = buildDetails(movie.mDetails);
+                final String fingerprint = values.getAsString(Movies.FINGERPRINT);
+                if (!fingerprints.containsKey(movie.mTmdbId)) {
+                    inserted++;
+                    details.add(values);
+                } else if (fingerprint == null
+                        || !fingerprint.equals(fingerprints.get(movie.mTmdbId))) {
+                    updated++;
+                    memberships.get(movie.mTmdbId).putInto(values);
+                    details.add(values);
+                } else {
+                    unchanged++;
+                }
+            }
+
+            final ContentValues seen = new ContentValues();
+            seen.put(Movies.SYNC_FLAGS, movie.mMembership.getSyncFlags());
+            if (movie.mIsRatingKnown) {
+                seen.put(Movies.SYNC_RATING, movie.mMembership.rating);
+            }
+            batch.add(ContentProviderOperation.newUpdate(Movies.buildSyncUri(mGeneration))
+                    .withSelection(Movies.TMDBID + "=?", new String[] {
+                            movie.mTmdbId
+                    }).withValues(seen).build());
+        }
+
+        // new movies have to exist before their lists can be recorded
+        if (!details.isEmpty()) {
+            mContext.getContentResolver().bulkInsert(Movies.CONTENT_URI_UPSERT,
+                    details.toArray(new ContentValues[details.size()]));
+        }
+        applyBatch(batch);
+
+        synchronized (this) {
+            mInserted += inserted;
+            mUpdated += updated;
+            mUnchanged += unchanged;
+        }
+    }
+
+    /**
+     * Builds the {@link TraktLibraryReader#METADATA_COLUMNS} of the movie and
+     * their fingerprint.
+     */
+    private static ContentValues buildDetails(ContentValues movie) {
+        final ContentValues values = new ContentValues();
+        for (String column : TraktLibraryReader.METADATA_COLUMNS) {
+            values.put(column, movie.getAsString(column));
+        }
+        values.put(Movies.FINGERPRINT, buildFingerprint(values));
+        return values;
+    }
+
+    /**
+     * Writes remaining movies, removes movies which are in none of the lists,
+     * then updates the list flags of all added movies.
+     *
+     * @param isComplete Whether all lists were added completely, so movies
+     *            which were not added are removed as well.
+     */
+    void finish(boolean isComplete) {
+        writeChunk(takeChunk());
+
+        final String generation = String.valueOf(mGeneration);
+        int seenCount = 0;
+        final Cursor seen = mContext.getContentResolver().query(Movies.CONTENT_URI,
+                new String[] {
+                    "COUNT(*)"
+                }, Movies.SYNC_GENERATION + "=?", new String[] {
+                    generation
+                }, null);
+        if (seen != null) {
+            if (seen.moveToFirst()) {
+                seenCount = seen.getInt(0);
+            }
+            seen.close();
+        }
+
+        String selection = "(" + Movies.SYNC_GENERATION + "=? AND " + Movies.SYNC_FLAGS
+                + "=0 AND " + Movies.SYNC_RATING + " IS NULL)";
+        String[] selectionArgs = new String[] {
+                generation
+        };
+        if (isComplete) {
+            selection += " OR " + Movies.SYNC_GENERATION + "<?";
+            selectionArgs = new String[] {
+                    generation, generation
+            };
+        }
+        final int deleted = mContext.getContentResolver().delete(Movies.CONTENT_URI,
+                selection, selectionArgs);
+        final int flagsChanged = mContext.getContentResolver().update(
+                Movies.buildSyncCommitUri(mGeneration), new ContentValues(), null, null);
+
+        synchronized (this) {
+            mSeenCount = seenCount;
+            mDeleted = deleted;
+            mFlagsChanged = flagsChanged;
+        }
+    }
+
+    private void applyBatch(ArrayList<ContentProviderOperation> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(MoviesContract.CONTENT_AUTHORITY, batch);
+        } catch (RemoteException e) {
+            // Failed binder transactions aren't recoverable
+            Log.e(TAG, e.getMessage());
+            throw new RuntimeException("Problem applying batch operation", e);
+        } catch (OperationApplicationException e) {
+            // Failures like constraint violation aren't recoverable
+            Log.e(TAG, e.getMessage());
+            throw new RuntimeException("Problem applying batch operation", e);
+        }
+    }
+
+    /** Number of movies in the database before the sync. */
+    int getLibrarySize() {
+        return mLibrarySize;
+    }
+
+    /** Number of distinct movies added, known once finished. */
+    synchronized int getSeenCount() {
+        return mSeenCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mInserted + " inserted, " + mUpdated + " updated, " + mUnchanged + " unchanged, "
+                + mFlagsChanged + " with changed flags, " + mDeleted + " deleted";
+    }
+
+    /**
+     * Returns a hash over all values, so changed movies can be detected
+     * without comparing every column.
+     */
+    private static String buildFingerprint(ContentValues values) {
+        // sort by column name to get the same fingerprint for the same values
+        TreeMap<String, Object> sortedValues = new TreeMap<String, Object>();
+        for (Entry<String, Object> value : values.valueSet()) {
+            sortedValues.put(value.getKey(), value.getValue());
+        }
+        StringBuilder content = new StringBuilder();
+        for (Entry<String, Object> value : sortedValues.entrySet()) {
+            content.append(value.getKey()).append('=').append(value.getValue()).append('\n');
+        }
+        try {
+            return Utils.toSHA1(content.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A movie waiting to be written with the next chunk.
+     */
+    private static class PendingMovie {
+
+        final String mTmdbId;
+
+        /** The synced values, null to only record the lists */
+        final ContentValues mDetails;
+
+        final Membership mMembership;
+
+        /** Whether the rating of the membership is known, or just not set */
+        final boolean mIsRatingKnown;
+
+        PendingMovie(String tmdbId, ContentValues details, Membership membership,
+                boolean isRatingKnown) {
+            mTmdbId = tmdbId;
+            mDetails = details;
+            mMembership = membership;
+            mIsRatingKnown = isRatingKnown;
+        }
+    }
+
+    /**
+     * The lists a movie is in and the rating the user gave it.
+     */
+    static class Membership {
+
+        boolean isWatched;
+
+        boolean isInCollection;
+
+        boolean isInWatchlist;
+
+        String rating;
+
+        /**
+         * Sets the flag of the given list, taking the watched flag and the
+         * rating from the movie.
+         */
+        void add(LibraryList list, ContentValues movie) {
+            switch (list) {
+                case ALL:
+                    isWatched = Boolean.TRUE.equals(movie.getAsBoolean(Movies.WATCHED));
+                    break;
+                case COLLECTION:
+                    isInCollection = true;
+                    break;
+                case WATCHLIST:
+                    isInWatchlist = true;
+                    break;
+                case RATINGS:
+                    rating = movie.getAsString(Movies.RATING);
+                    break;
+            }
+        }
+
+        /**
+         * Whether the movie is in any of the {@link LibraryList}s.
+         */
+        boolean isInLibrary() {
+            return isWatched || isInCollection || isInWatchlist || rating != null;
+        }
+
+        /**
+         * Returns the flags as {@link Movies#SYNC_FLAGS}.
+         */
+        int getSyncFlags() {
+            return (isWatched ? Movies.SYNC_FLAG_WATCHED : 0)
+                    | (isInWatchlist ? Movies.SYNC_FLAG_WATCHLIST : 0)
+                    | (isInCollection ? Movies.SYNC_FLAG_COLLECTION : 0);
+        }
+
+        void putInto(ContentValues values) {
+            values.put(Movies.WATCHED, isWatched);
+            values.put(Movies.INWATCHLIST, isInWatchlist);
+            values.put(Movies.INCOLLECTION, isInCollection);
+            values.put(Movies.RATING, rating);
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.jakewharton.apibuilder.ApiException;
+import com.jakewharton.trakt.ServiceManager;
+import com.jakewharton.trakt.TraktException;
+import com.jakewharton.trakt.entities.Activity;
+import com.jakewharton.trakt.entities.ActivityItem;
+import com.jakewharton.trakt.entities.Movie;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.ui.AppPreferences;
+import com.uwetrottmann.movies.util.LibrarySyncWriter.Membership;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
+import com.uwetrottmann.movies.util.TraktLibraryReader.LibraryList;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Syncs the trakt library of the user into the database. Blocks until done,
+ * so run it on a background thread. Usually scheduled through
+ * {@link com.uwetrottmann.movies.service.SyncScheduler}.
+ */
+public class MoviesSync {
+
+    private static final String TAG = "MoviesSync";
+
+    public enum Result {
+        SUCCESS, FAILURE, INVALID_CREDENTIALS
+    }
+
+    /** Fetch all lists after this time, to catch removals from lists. */
+    private static final long FULL_SYNC_INTERVAL = 7 * DateUtils.DAY_IN_MILLIS;
+
+    /** Activity feeds with this many items are assumed to be cut off. */
+    private static final int ACTIVITY_FEED_LIMIT = 100;
+
+    /** Above this many changed movies fetching all lists is cheaper. */
+    private static final int MAX_DELTA_MOVIES = 25;
+
+    /** Activity is fetched from this long before the last sync started. */
+    private static final long DELTA_SYNC_OVERLAP = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private final Context mContext;
+
+    private final boolean mIsFullSyncRequested;
+
+    /**
+     * Only fetches the movies changed since the last sync, unless it is time
+     * for a full sync.
+     */
+    public MoviesSync(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param isFullSync Whether to fetch all lists, even if fetching the
+     *            changes would do.
+     */
+    public MoviesSync(Context context, boolean isFullSync) {
+        mContext = context.getApplicationContext();
+        mIsFullSyncRequested = isFullSync;
+    }
+
+    public Result sync() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final long syncStart = System.currentTimeMillis();
+        final long start = SystemClock.uptimeMillis();
+        // other API requests while syncing are counted as well
+        final HttpTransport transport = HttpTransport.getInstance();
+        final long startBytes = transport.getReceivedBytes(RequestClass.API);
+        final long lastSync = prefs.getLong(AppPreferences.KEY_SYNC_LAST, 0);
+        final long lastFullSync = prefs.getLong(AppPreferences.KEY_SYNC_LASTFULL, 0);
+
+        boolean isFullSync = mIsFullSyncRequested || lastSync == 0
+                || syncStart - lastFullSync > FULL_SYNC_INTERVAL || lastFullSync > syncStart;
+        LibrarySyncWriter writer;
+        try {
+
+            // get auth data so we can return additional information (is
+            // collected, ratings)
+            ServiceManager serviceManager;
+            if (Utils.isTraktCredentialsValid(getContext())) {
+                serviceManager = Utils.getServiceManagerWithAuth(getContext(), false);
+            } else {
+                return Result.INVALID_CREDENTIALS;
+            }
+            final String username = Utils.getTraktUsername(getContext());
+
+            writer = new LibrarySyncWriter(getContext());
+            if (!isFullSync) {
+                final HashMap<String, Movie> changes = fetchChanges(serviceManager, username,
+                        lastSync);
+                if (changes != null) {
+                    for (Entry<String, Movie> change : changes.entrySet()) {
+                        final Movie movie = change.getValue();
+                        if (movie.title == null) {
+                            // can not be stored, same as when reading lists
+                            continue;
+                        }
+                        if (movie.tmdbId == null) {
+                            movie.tmdbId = change.getKey();
+                        }
+                        writer.put(buildMovieValues(movie), buildMembership(movie));
+                    }
+                } else {
+                    // fall back to a full sync if changes might have been
+                    // missed
+                    isFullSync = true;
+                }
+            }
+            if (isFullSync) {
+                fetchLibrary(getContext(), writer);
+            }
+            writer.finish(isFullSync);
+
+        } catch (ExecutionException e) {
+            Log.w(TAG, e.getCause());
+            return Result.FAILURE;
+        } catch (TraktException e) {
+            Log.w(TAG, e);
+            return Result.FAILURE;
+        } catch (ApiException e) {
+            Log.w(TAG, e);
+            return Result.FAILURE;
+        } catch (Exception e) {
+            Log.w(TAG, e);
+            return Result.FAILURE;
+        }
+
+        final long duration = SystemClock.uptimeMillis() - start;
+        final long bytes = transport.getReceivedBytes(RequestClass.API) - startBytes;
+        Log.d(TAG, "Wrote library: " + writer);
+
+        // remember when changes were last fetched, activity after the start
+        // of this sync is picked up by the next one
+        final SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(AppPreferences.KEY_SYNC_LAST, syncStart);
+        if (isFullSync) {
+            editor.putLong(AppPreferences.KEY_SYNC_LASTFULL, syncStart);
+            editor.putLong(AppPreferences.KEY_SYNC_FULLDURATION, duration);
+            editor.putLong(AppPreferences.KEY_SYNC_FULLBYTES, bytes);
+            Log.d(TAG, "Full sync in " + duration + " ms, received " + bytes + " bytes, fetched "
+                    + writer.getSeenCount() + " movies");
+        } else {
+            final long fullDuration = prefs.getLong(AppPreferences.KEY_SYNC_FULLDURATION, 0);
+            final long fullBytes = prefs.getLong(AppPreferences.KEY_SYNC_FULLBYTES, 0);
+            Log.d(TAG, "Delta sync in " + duration + " ms (last full sync " + fullDuration
+                    + " ms, saved " + Math.max(0, fullDuration - duration) + " ms), received "
+                    + bytes + " bytes (last full sync " + fullBytes + " bytes, saved "
+                    + Math.max(0, fullBytes - bytes) + " bytes), fetched "
+                    + writer.getSeenCount() + " instead of " + writer.getLibrarySize()
+                    + " movies");
+        }
+        editor.commit();
+
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Fetches the movies which changed since the last sync, as listed by the
+     * activity feed of the user. Their summaries tell in which lists they are
+     * now. Returns null if a full sync is needed instead: the feed might have
+     * been cut off, or there are so many changes that fetching all lists is
+     * cheaper.
+     * <p>
+     * Removals from lists do not show up in the feed, they are picked up by
+     * the periodic full sync.
+     */
+    private static HashMap<String, Movie> fetchChanges(ServiceManager manager, String username,
+            long lastSync) {
+        // ask for a little more to not miss activity while the last sync ran
+        final Activity activity = manager.activityService().user(username)
+                .timestamp(new Date(lastSync - DELTA_SYNC_OVERLAP)).fire();
+        if (activity == null || activity.activity == null) {
+            return null;
+        }
+        if (activity.activity.size() >= ACTIVITY_FEED_LIMIT) {
+            // feed is likely cut off, there is a gap to the last sync
+            Log.d(TAG, "Activity feed is full, doing a full sync");
+            return null;
+        }
+
+        final HashMap<String, Movie> changes = Maps.newHashMap();
+        for (ActivityItem item : activity.activity) {
+            if (item.movie == null || item.movie.tmdbId == null) {
+                continue;
+            }
+            if (changes.containsKey(item.movie.tmdbId)) {
+                continue;
+            }
+            if (changes.size() == MAX_DELTA_MOVIES) {
+                Log.d(TAG, "Too many changed movies, doing a full sync");
+                return null;
+            }
+            // get current details and list flags of the user
+            final Movie movie = manager.movieService().summary(item.movie.tmdbId).fire();
+            if (movie == null) {
+                return null;
+            }
+            changes.put(item.movie.tmdbId, movie);
+        }
+        return changes;
+    }
+
+    /**
+     * Streams all {@link LibraryList}s into the writer, which merges them by
+     * TMDb id. The lists are read in parallel in the sync queue of the
+     * {@link TaskScheduler}. Throws if any list could not be read completely,
+     * so no movie is removed by mistake.
+     */
+    private static void fetchLibrary(final Context context, final LibrarySyncWriter writer)
+            throws InterruptedException, ExecutionException {
+        final TaskScheduler scheduler = TaskScheduler.getInstance();
+        final ArrayList<Future<Void>> results = Lists.newArrayList();
+        try {
+            for (final LibraryList list : LibraryList.values()) {
+                results.add(scheduler.submit(Queue.SYNC, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final TraktLibraryReader reader = TraktLibraryReader.open(context,
+                                list);
+                        try {
+                            while (reader.hasNext()) {
+                                final ContentValues movie = reader.next();
+                                if (movie != null) {
+                                    writer.add(list, movie);
+                                }
+                            }
+                        } finally {
+                            reader.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            // stop reading the other lists if one failed
+            for (Future<Void> result : results) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Builds the {@link TraktLibraryReader#METADATA_COLUMNS} of a movie.
+     */
+    private static ContentValues buildMovieValues(Movie movie) {
+        final ContentValues values = new ContentValues();
+        values.put(Movies.TITLE, movie.title);
+        values.put(Movies.YEAR, movie.year);
+        values.put(Movies.RELEASED, movie.released == null ? null : movie.released.getTime());
+        values.put(Movies.URL, movie.url);
+        values.put(Movies.TRAILER, movie.trailer);
+        values.put(Movies.RUNTIME, movie.runtime);
+        values.put(Movies.TAGLINE, movie.tagline);
+        values.put(Movies.OVERVIEW, movie.overview);
+        values.put(Movies.CERTIFICATION, movie.certification);
+        values.put(Movies.IMDBID, movie.imdbId);
+        values.put(Movies.TMDBID, movie.tmdbId);
+        values.put(Movies.POSTER, movie.images == null ? null : movie.images.poster);
+        values.put(Movies.FANART, movie.images == null ? null : movie.images.fanart);
+        values.put(Movies.GENRES, movie.genres == null ? null : TextUtils.join(
+                Movies.GENRES_SEPARATOR, movie.genres));
+        values.put(Movies.RATINGS_PERCENTAGE, movie.ratings == null ? null
+                : movie.ratings.percentage);
+        values.put(Movies.RATINGS_VOTES, movie.ratings == null ? null : movie.ratings.votes);
+        return values;
+    }
+
+    /**
+     * Builds the list flags of a movie summary fetched with authentication,
+     * which includes the flags of the user.
+     */
+    private static Membership buildMembership(Movie movie) {
+        final Membership membership = new Membership();
+        membership.isWatched = Boolean.TRUE.equals(movie.watched);
+        membership.isInCollection = Boolean.TRUE.equals(movie.inCollection);
+        membership.isInWatchlist = Boolean.TRUE.equals(movie.inWatchlist);
+        membership.rating = movie.rating == null ? null : movie.rating.toString();
+        return membership;
+    }
+
+    private Context getContext() {
+        return mContext;
+    }
+
+}
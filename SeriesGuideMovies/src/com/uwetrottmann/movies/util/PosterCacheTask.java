@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.ui.AppPreferences;
+import com.uwetrottmann.movies.util.TaskScheduler.OnConflict;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the posters of all movies in the database to the image disk cache,
+ * so they are available offline. Stops as soon as WiFi is lost and picks up
+ * where it stopped on the next run. Posters already cached are skipped.
+ */
+public class PosterCacheTask extends AsyncTask<Void, Void, Void> {
+
+    private static final String TAG = "PosterCacheTask";
+
+    private static final String TASK_KEY = "postercache";
+
+    /**
+     * Downloads queued ahead in the prefetch queue of the
+     * {@link TaskScheduler}, which limits how many run at once.
+     */
+    private static final int MAX_QUEUED_DOWNLOADS = 2;
+
+    private final Context mContext;
+
+    public PosterCacheTask(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Starts caching posters if connected to WiFi. Does nothing if a run is
+     * already queued or in progress.
+     */
+    public static void runIfOnWifi(Context context) {
+        if (AndroidUtils.isWifiConnected(context)) {
+            TaskScheduler.getInstance().executeAsyncTask(Queue.PREFETCH, TASK_KEY,
+                    OnConflict.KEEP_EXISTING, new PosterCacheTask(context), new Void[] {});
+        }
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final long resumeId = prefs.getLong(AppPreferences.KEY_POSTERCACHE_LASTID, 0);
+
+        final Cursor movies = mContext.getContentResolver().query(Movies.CONTENT_URI,
+                new String[] {
+                        Movies._ID, Movies.POSTER
+                }, Movies._ID + ">? AND " + Movies.POSTER + " NOT NULL", new String[] {
+                    String.valueOf(resumeId)
+                }, Movies._ID + " ASC");
+        if (movies == null) {
+            return null;
+        }
+
+        final ImageDownloader imageDownloader = ImageDownloader.getInstance(mContext);
+        final TaskScheduler scheduler = TaskScheduler.getInstance();
+        // do not queue up more downloads than may run at once
+        final LinkedList<Future<Boolean>> downloads = new LinkedList<Future<Boolean>>();
+        long lastId = resumeId;
+        boolean isComplete = true;
+        try {
+            while (movies.moveToNext()) {
+                if (isCancelled() || !AndroidUtils.isWifiConnected(mContext)) {
+                    isComplete = false;
+                    break;
+                }
+
+                final String url = Utils.buildTraktPosterUrl(movies.getString(1));
+                if (!imageDownloader.isDiskCached(url)) {
+                    if (downloads.size() == MAX_QUEUED_DOWNLOADS) {
+                        waitForDownload(downloads.removeFirst());
+                    }
+                    downloads.add(scheduler.submit(Queue.PREFETCH, new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            return imageDownloader.downloadToDiskCache(url);
+                        }
+                    }));
+                }
+                lastId = movies.getLong(0);
+            }
+
+            // queued downloads still run if this task is canceled
+            for (Future<Boolean> download : downloads) {
+                waitForDownload(download);
+            }
+        } catch (InterruptedException e) {
+            isComplete = false;
+        } finally {
+            movies.close();
+        }
+
+        // start from the beginning next time if all posters were processed
+        prefs.edit().putLong(AppPreferences.KEY_POSTERCACHE_LASTID, isComplete ? 0 : lastId)
+                .commit();
+
+        return null;
+    }
+
+    private static void waitForDownload(Future<Boolean> download) throws InterruptedException {
+        try {
+            download.get();
+        } catch (ExecutionException e) {
+            // try again on the next run
+            Log.w(TAG, e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.annotation.TargetApi;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.util.ImageDownloaderStats.Histogram;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs background work of the app on a shared thread pool, in one of a few
+ * named {@link Queue}s. Each queue runs at most a fixed number of tasks at
+ * once. When threads are scarce, the next task is taken from the queue with
+ * the highest priority.
+ * <p>
+ * Tasks may be submitted with a key, only one task per key is queued or
+ * running at a time. A second task with the same key is either dropped or
+ * replaces the first, see {@link OnConflict}. Tasks with a key can be
+ * canceled through it.
+ * <p>
+ * Before Honeycomb {@link AsyncTask}s can not be given an executor, so they
+ * run on the platform pool instead, still deduplicated by key but without
+ * queue limits or wait times.
+ * <p>
+ * Work which does not touch the UI, like the parts of a sync, can be
+ * submitted from any thread with {@link #submit(Queue, Callable)} and waited
+ * for through the returned {@link Future}.
+ */
+public class TaskScheduler {
+
+    /**
+     * The queues, declared from highest to lowest priority.
+     */
+    public enum Queue {
+        /** Work the user is waiting for, like a check in. */
+        INTERACTIVE(2),
+        /** Images about to be displayed. */
+        IMAGE(3),
+        /** Refreshing data in the background. */
+        SYNC(2),
+        /** Loading data which might be needed later on. */
+        PREFETCH(2);
+
+        private final int mMaxRunning;
+
+        private Queue(int maxRunning) {
+            mMaxRunning = maxRunning;
+        }
+    }
+
+    /**
+     * What to do with a task if one with the same key is queued or running.
+     */
+    public enum OnConflict {
+        /** Drop the new task. */
+        KEEP_EXISTING,
+        /** Cancel the existing task and run the new one. */
+        REPLACE_EXISTING
+    }
+
+    /**
+     * Less than the sum of the queue limits, so priorities matter, but enough
+     * to always leave sync and prefetch tasks a thread.
+     */
+    private static final int MAX_THREADS = 6;
+
+    private static TaskScheduler _instance;
+
+    private final ExecutorService mWorkers;
+
+    private final LinkedList<Job>[] mPending;
+
+    private final int[] mRunning;
+
+    private int mRunningTotal;
+
+    private final HashMap<String, Job> mJobsByKey = Maps.newHashMap();
+
+    private final QueueStats[] mStats;
+
+    @SuppressWarnings("unchecked")
+    private TaskScheduler() {
+        mWorkers = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "TaskScheduler #" + mCount.incrementAndGet());
+            }
+        });
+
+        final int queueCount = Queue.values().length;
+        mPending = new LinkedList[queueCount];
+        mRunning = new int[queueCount];
+        mStats = new QueueStats[queueCount];
+        for (Queue queue : Queue.values()) {
+            mPending[queue.ordinal()] = new LinkedList<Job>();
+            mStats[queue.ordinal()] = new QueueStats();
+        }
+    }
+
+    public static synchronized TaskScheduler getInstance() {
+        if (_instance == null) {
+            _instance = new TaskScheduler();
+        }
+        return _instance;
+    }
+
+    /**
+     * Executes the task in the given queue. Call from the main thread.
+     *
+     * @param params Passed to the task, an empty array if it takes none.
+     */
+    public <T> void executeAsyncTask(Queue queue, AsyncTask<T, ?, ?> task, T[] params) {
+        executeAsyncTask(queue, null, OnConflict.KEEP_EXISTING, task, params);
+    }
+
+    /**
+     * Executes the task in the given queue. Call from the main thread.
+     *
+     * @param key Identifies the task for deduplication and cancellation, may
+     *            be null.
+     * @param params Passed to the task, an empty array if it takes none.
+     * @return False if the task was dropped because one with the same key
+     *         exists.
+     */
+    @TargetApi(11)
+    public synchronized <T> boolean executeAsyncTask(Queue queue, String key,
+            OnConflict onConflict, AsyncTask<T, ?, ?> task, T[] params) {
+        if (!resolveConflict(queue, key, onConflict)) {
+            return false;
+        }
+        final Job job = new Job(queue, key, task);
+        putKey(job);
+        if (AndroidUtils.isHoneycombOrHigher()) {
+            // the task hands its work to the job executor right away
+            task.executeOnExecutor(job, params);
+        } else {
+            job.mIsLegacy = true;
+            mStats[queue.ordinal()].mSubmitted++;
+            task.execute(params);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the callable in the given queue, on all platform versions. May be
+     * called from any thread. Canceling the returned {@link Future} removes
+     * the work from the queue or interrupts it.
+     */
+    public synchronized <V> Future<V> submit(Queue queue, Callable<V> callable) {
+        final FutureTask<V> future = new FutureTask<V>(callable);
+        final Job job = new Job(queue, future);
+        job.execute(future);
+        return future;
+    }
+
+    /**
+     * Returns true if the new task may be submitted, canceling an existing
+     * one with the same key if it should be replaced.
+     */
+    private boolean resolveConflict(Queue queue, String key, OnConflict onConflict) {
+        if (key == null) {
+            return true;
+        }
+        final Job existing = mJobsByKey.get(key);
+        if (existing == null || !existing.isActive()) {
+            return true;
+        }
+        if (onConflict == OnConflict.KEEP_EXISTING) {
+            mStats[queue.ordinal()].mDeduplicated++;
+            return false;
+        }
+        mStats[existing.mQueue.ordinal()].mReplaced++;
+        cancel(existing);
+        return true;
+    }
+
+    private void putKey(Job job) {
+        if (job.mKey != null) {
+            mJobsByKey.put(job.mKey, job);
+        }
+    }
+
+    /**
+     * Cancels the queued or running task with the given key, interrupting it
+     * if it is running.
+     *
+     * @return False if there was no such task.
+     */
+    public synchronized boolean cancel(String key) {
+        final Job job = mJobsByKey.get(key);
+        if (job == null || !job.isActive()) {
+            return false;
+        }
+        mStats[job.mQueue.ordinal()].mCanceled++;
+        cancel(job);
+        return true;
+    }
+
+    private void cancel(Job job) {
+        job.mTask.cancel(true);
+        if (mPending[job.mQueue.ordinal()].remove(job)) {
+            onFinished(job);
+        }
+    }
+
+    /**
+     * Whether a task with the given key is queued or running.
+     */
+    public synchronized boolean isActive(String key) {
+        final Job job = mJobsByKey.get(key);
+        return job != null && job.isActive();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread in the given queue.
+     */
+    public synchronized int getQueueLength(Queue queue) {
+        return mPending[queue.ordinal()].size();
+    }
+
+    /**
+     * Returns the average time tasks of the given queue waited for a thread,
+     * in milliseconds.
+     */
+    public synchronized long getAverageWaitTime(Queue queue) {
+        final QueueStats stats = mStats[queue.ordinal()];
+        return stats.mStarted == 0 ? 0 : stats.mWaitTime / stats.mStarted;
+    }
+
+    private synchronized void enqueue(Job job) {
+        final int index = job.mQueue.ordinal();
+        mPending[index].add(job);
+        final QueueStats stats = mStats[index];
+        stats.mSubmitted++;
+        stats.mMaxLength = Math.max(stats.mMaxLength, mPending[index].size());
+        scheduleNext();
+    }
+
+    /**
+     * Hands queued tasks to free threads, taking them from the queue with the
+     * highest priority which is below its limit.
+     */
+    private void scheduleNext() {
+        while (mRunningTotal < MAX_THREADS) {
+            Job next = null;
+            for (Queue queue : Queue.values()) {
+                final int index = queue.ordinal();
+                if (mRunning[index] < queue.mMaxRunning && !mPending[index].isEmpty()) {
+                    next = mPending[index].removeFirst();
+                    break;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            if (next.isCancelled()) {
+                // canceled by its owner, nothing left to run
+                onFinished(next);
+                continue;
+            }
+
+            final int index = next.mQueue.ordinal();
+            final long waitTime = SystemClock.uptimeMillis() - next.mEnqueuedAt;
+            final QueueStats stats = mStats[index];
+            stats.mStarted++;
+            stats.mWaitTime += waitTime;
+            stats.mWaitTimes.add(waitTime);
+            mRunning[index]++;
+            mRunningTotal++;
+            mWorkers.execute(next);
+        }
+    }
+
+    private synchronized void onFinished(Job job) {
+        job.mIsFinished = true;
+        if (job.mKey != null && mJobsByKey.get(job.mKey) == job) {
+            mJobsByKey.remove(job.mKey);
+        }
+    }
+
+    private synchronized void onRunFinished(Job job) {
+        onFinished(job);
+        mRunning[job.mQueue.ordinal()]--;
+        mRunningTotal--;
+        scheduleNext();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("TaskScheduler stats:");
+        for (Queue queue : Queue.values()) {
+            final int index = queue.ordinal();
+            final QueueStats stats = mStats[index];
+            writer.print(prefix);
+            writer.println("  " + queue + ": " + mRunning[index] + "/" + queue.mMaxRunning
+                    + " running, " + mPending[index].size() + " queued (max "
+                    + stats.mMaxLength + "), " + stats.mSubmitted + " submitted, "
+                    + stats.mDeduplicated + " deduplicated, " + stats.mReplaced + " replaced, "
+                    + stats.mCanceled + " canceled");
+            stats.mWaitTimes.dump(prefix + "    ", writer);
+        }
+    }
+
+    private static class QueueStats {
+
+        int mSubmitted;
+
+        int mStarted;
+
+        int mDeduplicated;
+
+        int mReplaced;
+
+        int mCanceled;
+
+        int mMaxLength;
+
+        long mWaitTime;
+
+        final Histogram mWaitTimes = new Histogram("Wait time (ms)", new long[] {
+                10, 50, 100, 250, 500, 1000, 5000
+        });
+    }
+
+    /**
+     * A queued task or submitted work. Also serves as the executor handed to
+     * an {@link AsyncTask}, which passes its work on to it.
+     */
+    private class Job implements Runnable, Executor {
+
+        final Queue mQueue;
+
+        final String mKey;
+
+        /** The task, null for submitted work */
+        final AsyncTask<?, ?, ?> mTask;
+
+        /** The submitted work, null for a task */
+        final Future<?> mFuture;
+
+        Runnable mWork;
+
+        long mEnqueuedAt;
+
+        /** Run on the platform pool, so only the task knows its state */
+        boolean mIsLegacy;
+
+        boolean mIsFinished;
+
+        Job(Queue queue, String key, AsyncTask<?, ?, ?> task) {
+            mQueue = queue;
+            mKey = key;
+            mTask = task;
+            mFuture = null;
+            mEnqueuedAt = SystemClock.uptimeMillis();
+        }
+
+        Job(Queue queue, Future<?> future) {
+            mQueue = queue;
+            mKey = null;
+            mTask = null;
+            mFuture = future;
+            mEnqueuedAt = SystemClock.uptimeMillis();
+        }
+
+        boolean isCancelled() {
+            return mTask != null ? mTask.isCancelled() : mFuture.isCancelled();
+        }
+
+        boolean isActive() {
+            if (mIsLegacy) {
+                return mTask.getStatus() != AsyncTask.Status.FINISHED && !mTask.isCancelled();
+            }
+            return !mIsFinished;
+        }
+
+        @Override
+        public void execute(Runnable work) {
+            mWork = work;
+            enqueue(this);
+        }
+
+        @Override
+        public void run() {
+            // undo priority changes of a previous task on this thread
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                mWork.run();
+            } finally {
+                onRunFinished(this);
+            }
+        }
+    }
+
+}
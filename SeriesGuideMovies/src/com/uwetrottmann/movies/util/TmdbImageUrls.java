@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.jakewharton.apibuilder.ApiException;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.movies.ui.AppPreferences;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
+import com.uwetrottmann.tmdb.TmdbException;
+import com.uwetrottmann.tmdb.entities.Configuration;
+
+import java.util.List;
+
+/**
+ * Builds TMDb image URLs from the image configuration of TMDb. Picks the
+ * smallest available size covering the width an image is displayed at. The
+ * configuration is stored in the default shared preferences and refreshed in
+ * the background once it is older than {@link #CONFIGURATION_TTL}.
+ */
+public class TmdbImageUrls {
+
+    private static final String TAG = "TmdbImageUrls";
+
+    private static final long CONFIGURATION_TTL = 3 * DateUtils.DAY_IN_MILLIS;
+
+    private static final long RETRY_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+
+    private static final String DEFAULT_BASE_URL = "http://cf2.imgobject.com/t/p/";
+
+    private static final String[] DEFAULT_POSTER_SIZES = new String[] {
+            "w92", "w154", "w185", "w342", "w500", "original"
+    };
+
+    private static final String[] DEFAULT_BACKDROP_SIZES = new String[] {
+            "w300", "w780", "w1280", "original"
+    };
+
+    private static final String SIZE_SEPARATOR = ",";
+
+    private static TmdbImageUrls _instance;
+
+    private final Context mContext;
+
+    private String mBaseUrl;
+
+    private String[] mPosterSizes;
+
+    private String[] mBackdropSizes;
+
+    private long mLastUpdated;
+
+    private long mLastRefreshAttempt;
+
+    private boolean mIsRefreshing;
+
+    private TmdbImageUrls(Context context) {
+        mContext = context.getApplicationContext();
+        load();
+    }
+
+    public static synchronized TmdbImageUrls getInstance(Context context) {
+        if (_instance == null) {
+            _instance = new TmdbImageUrls(context);
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns the URL of the smallest poster at least the given width in
+     * pixels. Pass 0 to get the smallest available poster. Returns null if
+     * path is null.
+     */
+    public String buildPosterUrl(String path, int width) {
+        return buildUrl(path, width, getPosterSizes());
+    }
+
+    /**
+     * Returns the URL of the smallest backdrop at least the given width in
+     * pixels. Pass 0 to get the smallest available backdrop. Returns null if
+     * path is null.
+     */
+    public String buildBackdropUrl(String path, int width) {
+        return buildUrl(path, width, getBackdropSizes());
+    }
+
+    private String buildUrl(String path, int width, String[] sizes) {
+        if (path == null) {
+            return null;
+        }
+        String baseUrl;
+        synchronized (this) {
+            baseUrl = mBaseUrl;
+        }
+        refreshIfNecessary();
+        return baseUrl + selectSize(sizes, width) + path;
+    }
+
+    /**
+     * Returns the first size of the form "w[width]" with a width of at least
+     * the given one. Sizes are expected to be ordered ascending. Falls back to
+     * the largest available size.
+     */
+    static String selectSize(String[] sizes, int width) {
+        String largest = sizes[sizes.length - 1];
+        for (String size : sizes) {
+            if (size.startsWith("w")) {
+                try {
+                    if (Integer.parseInt(size.substring(1)) >= width) {
+                        return size;
+                    }
+                } catch (NumberFormatException e) {
+                    // skip unknown size format
+                }
+            }
+        }
+        return largest;
+    }
+
+    private synchronized String[] getPosterSizes() {
+        return mPosterSizes;
+    }
+
+    private synchronized String[] getBackdropSizes() {
+        return mBackdropSizes;
+    }
+
+    private synchronized void load() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mBaseUrl = prefs.getString(AppPreferences.KEY_TMDB_BASE_URL, DEFAULT_BASE_URL);
+        mPosterSizes = splitSizes(prefs.getString(AppPreferences.KEY_TMDB_POSTER_SIZES, null),
+                DEFAULT_POSTER_SIZES);
+        mBackdropSizes = splitSizes(
+                prefs.getString(AppPreferences.KEY_TMDB_BACKDROP_SIZES, null),
+                DEFAULT_BACKDROP_SIZES);
+        mLastUpdated = prefs.getLong(AppPreferences.KEY_TMDB_CONFIG_UPDATED, 0);
+    }
+
+    private static String[] splitSizes(String sizes, String[] defaultSizes) {
+        if (TextUtils.isEmpty(sizes)) {
+            return defaultSizes;
+        }
+        return sizes.split(SIZE_SEPARATOR);
+    }
+
+    /**
+     * Starts downloading the TMDb configuration if it has expired and there
+     * is a network connection.
+     */
+    private synchronized void refreshIfNecessary() {
+        final long now = System.currentTimeMillis();
+        if (mIsRefreshing || now - mLastUpdated < CONFIGURATION_TTL
+                || now - mLastRefreshAttempt < RETRY_INTERVAL
+                || !AndroidUtils.isNetworkConnected(mContext)) {
+            return;
+        }
+
+        mIsRefreshing = true;
+        mLastRefreshAttempt = now;
+        TaskScheduler.getInstance().executeAsyncTask(Queue.SYNC, new ConfigurationTask(),
+                new Void[] {});
+    }
+
+    private class ConfigurationTask extends AsyncTask<Void, Void, Void> {
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            try {
+                Configuration config = Utils.getTmdbServiceManager(mContext)
+                        .configurationService().configuration().fire();
+                if (config != null && config.images != null
+                        && !TextUtils.isEmpty(config.images.base_url)
+                        && !isEmpty(config.images.poster_sizes)
+                        && !isEmpty(config.images.backdrop_sizes)) {
+                    PreferenceManager
+                            .getDefaultSharedPreferences(mContext)
+                            .edit()
+                            .putString(AppPreferences.KEY_TMDB_BASE_URL, config.images.base_url)
+                            .putString(AppPreferences.KEY_TMDB_POSTER_SIZES,
+                                    TextUtils.join(SIZE_SEPARATOR, config.images.poster_sizes))
+                            .putString(AppPreferences.KEY_TMDB_BACKDROP_SIZES,
+                                    TextUtils.join(SIZE_SEPARATOR, config.images.backdrop_sizes))
+                            .putLong(AppPreferences.KEY_TMDB_CONFIG_UPDATED,
+                                    System.currentTimeMillis()).commit();
+                    load();
+                }
+            } catch (TmdbException e) {
+                Log.w(TAG, e);
+            } catch (ApiException e) {
+                Log.w(TAG, e);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            synchronized (TmdbImageUrls.this) {
+                mIsRefreshing = false;
+            }
+        }
+
+        private boolean isEmpty(List<String> list) {
+            return list == null || list.isEmpty();
+        }
+    }
+
+}
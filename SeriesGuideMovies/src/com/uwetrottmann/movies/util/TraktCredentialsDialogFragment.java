@@ -39,9 +39,13 @@ import com.jakewharton.trakt.ServiceManager;
 import com.jakewharton.trakt.TraktException;
 import com.jakewharton.trakt.entities.Response;
 import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.entities.TraktStatus;
+import com.uwetrottmann.movies.service.SyncScheduler;
 import com.uwetrottmann.movies.ui.AppPreferences;
+import com.uwetrottmann.movies.util.TaskScheduler.OnConflict;
+import com.uwetrottmann.movies.util.TaskScheduler.Queue;
 
 /**
  * Dialog to gather and verify as well as clear trakt.tv credentials.
@@ -50,6 +54,10 @@ import com.uwetrottmann.movies.ui.AppPreferences;
  */
 public class TraktCredentialsDialogFragment extends SherlockDialogFragment {
 
+    private static final String VALIDATION_TASK_KEY = "trakt-credentials-validation";
+
+    private static final String DISCONNECT_TASK_KEY = "trakt-credentials-disconnect";
+
     public static TraktCredentialsDialogFragment newInstance() {
         TraktCredentialsDialogFragment f = new TraktCredentialsDialogFragment();
         return f;
@@ -141,6 +149,8 @@ public class TraktCredentialsDialogFragment extends SherlockDialogFragment {
                         // use a separate ServiceManager here to avoid
                         // setting wrong credentials
                         final ServiceManager manager = new ServiceManager();
+                        manager.setReadTimeout(RequestClass.API.readTimeout);
+                        manager.setConnectionTimeout(RequestClass.API.connectTimeout);
                         manager.setApiKey(traktApiKey);
                         manager.setAuthentication(username, passwordHash);
                         manager.setUseSsl(true);
@@ -204,13 +214,18 @@ public class TraktCredentialsDialogFragment extends SherlockDialogFragment {
                                 return;
                             }
 
+                            // start syncing the library of the new account
+                            SyncScheduler.ensureScheduled(context);
+
                             // all went through
                             dismiss();
                         }
                     }
                 };
 
-                accountValidatorTask.execute();
+                TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                        VALIDATION_TASK_KEY, OnConflict.REPLACE_EXISTING, accountValidatorTask,
+                        new Void[] {});
             }
         });
 
@@ -219,7 +234,7 @@ public class TraktCredentialsDialogFragment extends SherlockDialogFragment {
             @Override
             public void onClick(View v) {
                 // clear trakt credentials
-                new AsyncTask<Void, Void, Void>() {
+                AsyncTask<Void, Void, Void> disconnectTask = new AsyncTask<Void, Void, Void>() {
                     @Override
                     protected Void doInBackground(Void... params) {
                         Editor editor = prefs.edit();
@@ -234,9 +249,18 @@ public class TraktCredentialsDialogFragment extends SherlockDialogFragment {
                             e.printStackTrace();
                         }
 
+                        // stop syncing without an account
+                        SyncScheduler.ensureScheduled(context);
+
                         return null;
                     }
-                }.execute();
+                };
+
+                // a running validation would store the credentials again
+                TaskScheduler.getInstance().cancel(VALIDATION_TASK_KEY);
+                TaskScheduler.getInstance().executeAsyncTask(Queue.INTERACTIVE,
+                        DISCONNECT_TASK_KEY, OnConflict.KEEP_EXISTING, disconnectTask,
+                        new Void[] {});
 
                 dismiss();
             }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import com.google.myjson.stream.JsonReader;
+import com.google.myjson.stream.JsonToken;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
+import com.uwetrottmann.movies.R;
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.ui.AppPreferences;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+
+/**
+ * Reads a movie list of the trakt library of the user one movie at a time
+ * straight from the response, so the whole list is never held in memory.
+ * Movies are returned as values of {@link Movies} columns. Close the reader
+ * when done.
+ */
+public class TraktLibraryReader {
+
+    private static final String API_URL = "http://api.trakt.tv/";
+
+    /**
+     * The movie lists of the library of a user.
+     */
+    public enum LibraryList {
+        /** Watched and collected movies */
+        ALL("user/library/movies/all.json", null),
+        COLLECTION("user/library/movies/collection.json", null),
+        WATCHLIST("user/watchlist/movies.json", null),
+        RATINGS("user/ratings/movies.json", "all");
+
+        private final String mPath;
+
+        private final String mSuffix;
+
+        private LibraryList(String path, String suffix) {
+            mPath = path;
+            mSuffix = suffix;
+        }
+    }
+
+    /**
+     * Columns describing the movie itself, as opposed to the flags of the
+     * user. All of them are set on each returned movie, missing ones as null.
+     */
+    public static final String[] METADATA_COLUMNS = new String[] {
+            Movies.TITLE, Movies.YEAR, Movies.RELEASED, Movies.URL, Movies.TRAILER,
+            Movies.RUNTIME, Movies.TAGLINE, Movies.OVERVIEW, Movies.CERTIFICATION, Movies.IMDBID,
+            Movies.TMDBID, Movies.POSTER, Movies.FANART, Movies.GENRES,
+            Movies.RATINGS_PERCENTAGE, Movies.RATINGS_VOTES
+    };
+
+    private final JsonReader mReader;
+
+    private TraktLibraryReader(JsonReader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Requests the given list of the user with valid credentials and returns
+     * a reader positioned at its first movie.
+     *
+     * @throws Exception When decrypting the password failed.
+     */
+    public static TraktLibraryReader open(Context context, LibraryList list) throws Exception {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context
+                .getApplicationContext());
+        final String username = prefs.getString(AppPreferences.KEY_TRAKTUSER, "");
+        final String password = SimpleCrypto.decrypt(
+                prefs.getString(AppPreferences.KEY_TRAKTPWD, ""), context);
+
+        final StringBuilder url = new StringBuilder(API_URL).append(list.mPath).append('/')
+                .append(context.getString(R.string.trakt_apikey)).append('/')
+                .append(URLEncoder.encode(username, "UTF-8"));
+        if (list.mSuffix != null) {
+            url.append('/').append(list.mSuffix);
+        }
+
+        final HttpTransport transport = HttpTransport.getInstance();
+        final HttpURLConnection conn = transport.open(url.toString(), RequestClass.API);
+        conn.setRequestProperty("Authorization", "Basic "
+                + new String(Base64.encodeBase64((username + ":" + password).getBytes("UTF-8"))));
+        final int responseCode = transport.connect(conn);
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Fetching " + list + " failed with HTTP " + responseCode);
+        }
+
+        final JsonReader reader = new JsonReader(new InputStreamReader(transport.getBody(conn,
+                RequestClass.API), "UTF-8"));
+        try {
+            reader.beginArray();
+        } catch (IOException e) {
+            AndroidUtils.closeQuietly(reader);
+            throw e;
+        }
+        return new TraktLibraryReader(reader);
+    }
+
+    public boolean hasNext() throws IOException {
+        return mReader.hasNext();
+    }
+
+    /**
+     * Reads the next movie. Besides the {@link #METADATA_COLUMNS} the values
+     * contain the {@link Movies#WATCHED}, {@link Movies#INWATCHLIST},
+     * {@link Movies#INCOLLECTION} and {@link Movies#RATING} flags returned
+     * along with the movie, if any.
+     *
+     * @return Null if the movie has no title or TMDb id, so it can not be
+     *         stored. Skip it and continue reading.
+     */
+    public ContentValues next() throws IOException {
+        final ContentValues values = new ContentValues();
+        for (String column : METADATA_COLUMNS) {
+            values.putNull(column);
+        }
+
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            final String name = mReader.nextName();
+            if (mReader.peek() == JsonToken.NULL) {
+                mReader.nextNull();
+                continue;
+            }
+            if ("title".equals(name)) {
+                values.put(Movies.TITLE, mReader.nextString());
+            } else if ("year".equals(name)) {
+                values.put(Movies.YEAR, mReader.nextString());
+            } else if ("released".equals(name)) {
+                // seconds, stored in milliseconds
+                values.put(Movies.RELEASED, mReader.nextLong() * 1000);
+            } else if ("url".equals(name)) {
+                values.put(Movies.URL, mReader.nextString());
+            } else if ("trailer".equals(name)) {
+                values.put(Movies.TRAILER, mReader.nextString());
+            } else if ("runtime".equals(name)) {
+                values.put(Movies.RUNTIME, mReader.nextInt());
+            } else if ("tagline".equals(name)) {
+                values.put(Movies.TAGLINE, mReader.nextString());
+            } else if ("overview".equals(name)) {
+                values.put(Movies.OVERVIEW, mReader.nextString());
+            } else if ("certification".equals(name)) {
+                values.put(Movies.CERTIFICATION, mReader.nextString());
+            } else if ("imdb_id".equals(name)) {
+                values.put(Movies.IMDBID, mReader.nextString());
+            } else if ("tmdb_id".equals(name)) {
+                values.put(Movies.TMDBID, mReader.nextString());
+            } else if ("images".equals(name)) {
+                readImages(values);
+            } else if ("genres".equals(name)) {
+                readGenres(values);
+            } else if ("ratings".equals(name)) {
+                readRatings(values);
+            } else if ("watched".equals(name)) {
+                values.put(Movies.WATCHED, mReader.nextBoolean());
+            } else if ("in_watchlist".equals(name)) {
+                values.put(Movies.INWATCHLIST, mReader.nextBoolean());
+            } else if ("in_collection".equals(name)) {
+                values.put(Movies.INCOLLECTION, mReader.nextBoolean());
+            } else if ("rating".equals(name)) {
+                values.put(Movies.RATING, mReader.nextString());
+            } else {
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+
+        if (values.getAsString(Movies.TITLE) == null || values.getAsString(Movies.TMDBID) == null) {
+            return null;
+        }
+        return values;
+    }
+
+    private void readImages(ContentValues values) throws IOException {
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            final String name = mReader.nextName();
+            if (mReader.peek() == JsonToken.NULL) {
+                mReader.nextNull();
+            } else if ("poster".equals(name)) {
+                values.put(Movies.POSTER, mReader.nextString());
+            } else if ("fanart".equals(name)) {
+                values.put(Movies.FANART, mReader.nextString());
+            } else {
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+    }
+
+    private void readGenres(ContentValues values) throws IOException {
+        final ArrayList<String> genres = Lists.newArrayList();
+        mReader.beginArray();
+        while (mReader.hasNext()) {
+            genres.add(mReader.nextString());
+        }
+        mReader.endArray();
+        values.put(Movies.GENRES, TextUtils.join(Movies.GENRES_SEPARATOR, genres));
+    }
+
+    private void readRatings(ContentValues values) throws IOException {
+        mReader.beginObject();
+        while (mReader.hasNext()) {
+            final String name = mReader.nextName();
+            if (mReader.peek() == JsonToken.NULL) {
+                mReader.nextNull();
+            } else if ("percentage".equals(name)) {
+                values.put(Movies.RATINGS_PERCENTAGE, mReader.nextInt());
+            } else if ("votes".equals(name)) {
+                values.put(Movies.RATINGS_VOTES, mReader.nextInt());
+            } else {
+                mReader.skipValue();
+            }
+        }
+        mReader.endObject();
+    }
+
+    /**
+     * Closes the response. Unread movies are drained only if few are left,
+     * otherwise the connection is discarded.
+     */
+    public void close() {
+        AndroidUtils.closeQuietly(mReader);
+    }
+
+}
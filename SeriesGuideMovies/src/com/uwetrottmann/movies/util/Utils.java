@@ -25,6 +25,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.jakewharton.trakt.ServiceManager;
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
 import com.uwetrottmann.movies.R;
 import com.uwetrottmann.movies.ui.AppPreferences;
 
@@ -63,8 +64,8 @@ public class Utils {
             boolean refreshCredentials) throws Exception {
         if (sServiceManagerWithAuthInstance == null) {
             sServiceManagerWithAuthInstance = new ServiceManager();
-            sServiceManagerWithAuthInstance.setReadTimeout(10000);
-            sServiceManagerWithAuthInstance.setConnectionTimeout(15000);
+            sServiceManagerWithAuthInstance.setReadTimeout(RequestClass.API.readTimeout);
+            sServiceManagerWithAuthInstance.setConnectionTimeout(RequestClass.API.connectTimeout);
             sServiceManagerWithAuthInstance.setApiKey(context.getResources().getString(
                     R.string.trakt_apikey));
             // this made some problems, so sadly disabled for now
@@ -97,8 +98,8 @@ public class Utils {
     public static synchronized ServiceManager getServiceManager(Context context) {
         if (sServiceManagerInstance == null) {
             sServiceManagerInstance = new ServiceManager();
-            sServiceManagerInstance.setReadTimeout(10000);
-            sServiceManagerInstance.setConnectionTimeout(15000);
+            sServiceManagerInstance.setReadTimeout(RequestClass.API.readTimeout);
+            sServiceManagerInstance.setConnectionTimeout(RequestClass.API.connectTimeout);
             sServiceManagerInstance.setApiKey(context.getResources().getString(
                     R.string.trakt_apikey));
             // this made some problems, so sadly disabled for now
@@ -143,6 +144,17 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Returns the URL of the small version of a trakt poster as displayed in
+     * lists, or null if poster is null.
+     */
+    public static String buildTraktPosterUrl(String poster) {
+        if (poster == null) {
+            return null;
+        }
+        return poster.substring(0, poster.length() - 4) + "-138.jpg";
+    }
+
     /**
      * Get a tmdb-java ServiceManager with our API key set.
      */
@@ -150,8 +162,8 @@ public class Utils {
             Context context) {
         if (sTmdbServiceManagerInstance == null) {
             sTmdbServiceManagerInstance = new com.uwetrottmann.tmdb.ServiceManager();
-            sTmdbServiceManagerInstance.setReadTimeout(10000);
-            sTmdbServiceManagerInstance.setConnectionTimeout(15000);
+            sTmdbServiceManagerInstance.setReadTimeout(RequestClass.API.readTimeout);
+            sTmdbServiceManagerInstance.setConnectionTimeout(RequestClass.API.connectTimeout);
             sTmdbServiceManagerInstance.setApiKey(context.getResources().getString(
                     R.string.tmdb_apikey));
         }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.androidutils;
+
+import com.uwetrottmann.androidutils.HttpTransport.RequestClass;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Runs {@link HttpTransport} against a {@link LocalHttpServer}.
+ */
+public class HttpTransportTest extends TestCase {
+
+    private LocalHttpServer mServer;
+
+    private HttpTransport mTransport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = LocalHttpServer.start();
+        mTransport = new HttpTransport();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testApiResponseIsDecompressed() throws IOException {
+        final InputStream in = mTransport.get(mServer.getUrl("/text?size=1000"),
+                RequestClass.API);
+        final String text = readFully(in);
+
+        assertEquals(1000, text.length());
+        assertTrue(text.startsWith("abcdefg"));
+        assertEquals(1, mTransport.getRequestCount());
+        assertEquals(1, mTransport.getGzipResponseCount());
+    }
+
+    public void testImageIsRequestedWithoutEncoding() throws IOException {
+        final String text = readFully(mTransport.get(mServer.getUrl("/text?size=1000"),
+                RequestClass.IMAGE));
+
+        assertEquals(1000, text.length());
+        assertEquals(0, mTransport.getGzipResponseCount());
+    }
+
+    public void testConnectionIsReusedAfterBodyWasRead() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            readFully(mTransport.get(mServer.getUrl("/text?size=1000"), RequestClass.API));
+        }
+
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(3, mTransport.getReusableCount());
+        assertEquals(0, mTransport.getDiscardedCount());
+    }
+
+    public void testSmallRemainderIsDrainedOnClose() throws IOException {
+        final InputStream in = mTransport.get(mServer.getUrl("/text?size=2000"),
+                RequestClass.IMAGE);
+        assertTrue(in.read() != -1);
+        in.close();
+        readFully(mTransport.get(mServer.getUrl("/text?size=10"), RequestClass.IMAGE));
+
+        assertEquals(2, mTransport.getReusableCount());
+        assertEquals(0, mTransport.getDiscardedCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testLargeRemainderIsDiscardedOnClose() throws IOException {
+        final InputStream in = mTransport.get(mServer.getUrl("/text?size=200000"),
+                RequestClass.IMAGE);
+        assertTrue(in.read() != -1);
+        in.close();
+
+        assertEquals(0, mTransport.getReusableCount());
+        assertEquals(1, mTransport.getDiscardedCount());
+    }
+
+    public void testErrorResponse() throws IOException {
+        final HttpURLConnection conn = mTransport.open(mServer.getUrl("/missing"),
+                RequestClass.API);
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, mTransport.connect(conn));
+        assertEquals("not here", readFully(mTransport.getErrorBody(conn, RequestClass.API)));
+        assertEquals(1, mTransport.getRequestCount());
+    }
+
+    public void testBodyIsSent() throws IOException {
+        final HttpURLConnection conn = mTransport.open(mServer.getUrl("/echo"),
+                RequestClass.API);
+        conn.setRequestMethod("POST");
+
+        assertEquals(HttpURLConnection.HTTP_OK,
+                mTransport.connect(conn, "{\"title\":\"Movie\"}", "application/json"));
+        assertEquals("POST", conn.getHeaderField("X-Method"));
+        assertEquals("application/json", conn.getHeaderField("X-Content-Type"));
+        assertEquals("{\"title\":\"Movie\"}",
+                readFully(mTransport.getBody(conn, RequestClass.API)));
+    }
+
+    public void testReceivedBytesAreCountedPerClass() throws IOException {
+        readFully(mTransport.get(mServer.getUrl("/text?size=1000"), RequestClass.API));
+        readFully(mTransport.get(mServer.getUrl("/text?size=1000"), RequestClass.IMAGE));
+
+        // compressed size, the repeating text compresses well
+        final long apiBytes = mTransport.getReceivedBytes(RequestClass.API);
+        assertTrue(apiBytes > 0 && apiBytes < 1000);
+        assertEquals(1000, mTransport.getReceivedBytes(RequestClass.IMAGE));
+    }
+
+    static String readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.androidutils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal keep-alive HTTP/1.1 server on the loopback interface, serving a few
+ * fixed paths for tests:
+ * <ul>
+ * <li>{@code /text?size=n} n bytes of text, gzip compressed if the client
+ * accepts it</li>
+ * <li>{@code /json} the object <code>{"title":"Movie"}</code>, gzip compressed
+ * if the client accepts it</li>
+ * <li>{@code /echo} the request body, with the request method and content
+ * type in headers</li>
+ * <li>{@code /missing} a 404 with a short body</li>
+ * </ul>
+ * Counts accepted connections, so tests can tell if one was reused.
+ */
+public class LocalHttpServer {
+
+    private final ServerSocket mServerSocket;
+
+    private final AtomicInteger mConnections = new AtomicInteger();
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private LocalHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Starts a server on a free port. Call {@link #shutdown()} when done.
+     */
+    public static LocalHttpServer start() throws IOException {
+        final LocalHttpServer server = new LocalHttpServer();
+        final Thread acceptor = new Thread("LocalHttpServer") {
+            @Override
+            public void run() {
+                server.accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /** Number of connections accepted so far. */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /** Number of requests answered so far. */
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            final Thread connection = new Thread("LocalHttpServer connection") {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            };
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /**
+     * Answers requests on the connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                final HashMap<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    final int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line
+                            .substring(colon + 1).trim());
+                }
+                final byte[] body = readBody(in, headers.get("content-length"));
+                respond(out, requestLine, headers, body);
+                mRequests.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private static void respond(OutputStream out, String requestLine,
+            HashMap<String, String> headers, byte[] requestBody) throws IOException {
+        final String[] parts = requestLine.split(" ");
+        final String method = parts[0];
+        final String path = parts[1];
+
+        int status = 200;
+        String extraHeaders = "";
+        byte[] body;
+        if (path.startsWith("/text") || path.equals("/json")) {
+            final byte[] text;
+            if (path.equals("/json")) {
+                text = "{\"title\":\"Movie\"}".getBytes("UTF-8");
+            } else {
+                final int size = Integer.parseInt(path.substring(path.indexOf("size=") + 5));
+                text = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    text[i] = (byte) ('a' + i % 26);
+                }
+            }
+            final String encoding = headers.get("accept-encoding");
+            if (encoding != null && encoding.contains("gzip")) {
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(text);
+                gzip.close();
+                body = compressed.toByteArray();
+                extraHeaders = "Content-Encoding: gzip\r\n";
+            } else {
+                body = text;
+            }
+        } else if (path.equals("/echo")) {
+            body = requestBody;
+            extraHeaders = "X-Method: " + method + "\r\nX-Content-Type: "
+                    + headers.get("content-type") + "\r\n";
+        } else {
+            status = 404;
+            body = "not here".getBytes("UTF-8");
+        }
+
+        final String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Not Found")
+                + "\r\nContent-Length: " + body.length + "\r\n" + extraHeaders + "\r\n";
+        out.write(head.getBytes("UTF-8"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] readBody(InputStream in, String contentLength) throws IOException {
+        final int length = contentLength == null ? 0 : Integer.parseInt(contentLength);
+        final byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(body, read, length - read);
+            if (n == -1) {
+                throw new IOException("Body cut off");
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    /**
+     * Reads a CRLF terminated line, returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.provider.MoviesProvider.DatabaseHelper;
+import com.uwetrottmann.movies.provider.MoviesProvider.Indexes;
+import com.uwetrottmann.movies.provider.MoviesProvider.Tables;
+
+/**
+ * Upgrades a populated database of the first version and checks no movie is
+ * lost on the way.
+ */
+public class DatabaseHelperTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "movies.db";
+
+    /** The movies table as created by the first version, do not change. */
+    private static final String CREATE_MOVIES_TABLE_V1 = "CREATE TABLE movies ("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "movie_title TEXT NOT NULL,"
+            + "movie_year TEXT,"
+            + "movie_released INTEGER,"
+            + "movie_url TEXT,"
+            + "movie_trailer TEXT,"
+            + "movie_runtime INTEGER,"
+            + "movie_tagline TEXT,"
+            + "movie_overview TEXT,"
+            + "movie_certification TEXT,"
+            + "movie_imdbid TEXT,"
+            + "movie_tmdbid TEXT NOT NULL,"
+            + "movie_poster TEXT,"
+            + "movie_fanart TEXT,"
+            + "movie_genres BLOB,"
+            + "movie_ratepercentage INTEGER,"
+            + "movie_ratevotes INTEGER,"
+            + "movie_watched INTEGER,"
+            + "movie_inwatchlist INTEGER,"
+            + "movie_incollecetion INTEGER,"
+            + "UNIQUE (movie_tmdbid) ON CONFLICT REPLACE);";
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "upgradetest.");
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromOriginalKeepsMovies() {
+        createOriginalDatabase();
+
+        final DatabaseHelper helper = new DatabaseHelper(mContext);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(DatabaseHelper.DATABASE_VERSION, db.getVersion());
+
+            final Cursor movies = db.query(Tables.MOVIES, new String[] {
+                    Movies.TMDBID, Movies.TITLE, Movies.WATCHED, Movies.INWATCHLIST,
+                    Movies.INCOLLECTION, Movies.FINGERPRINT, Movies.RATING,
+                    Movies.SYNC_GENERATION, Movies.SYNC_FLAGS
+            }, null, null, null, null, Movies.TMDBID);
+            try {
+                assertEquals(2, movies.getCount());
+
+                movies.moveToFirst();
+                assertEquals("550", movies.getString(0));
+                assertEquals("Fight Club", movies.getString(1));
+                assertEquals(1, movies.getInt(2));
+                assertEquals(0, movies.getInt(3));
+                assertEquals(1, movies.getInt(4));
+                // new columns, filled on the next sync
+                assertTrue(movies.isNull(5));
+                assertTrue(movies.isNull(6));
+                assertEquals(0, movies.getInt(7));
+                assertEquals(0, movies.getInt(8));
+
+                movies.moveToNext();
+                assertEquals("603", movies.getString(0));
+                assertEquals("The Matrix", movies.getString(1));
+                assertEquals(0, movies.getInt(2));
+                assertEquals(1, movies.getInt(3));
+                assertEquals(0, movies.getInt(4));
+            } finally {
+                movies.close();
+            }
+
+            assertSchemaObject(db, "index", Indexes.MOVIES_TITLE);
+            assertSchemaObject(db, "index", Indexes.MOVIES_WATCHED);
+            assertSchemaObject(db, "index", Indexes.MOVIES_WATCHLIST);
+            assertSchemaObject(db, "index", Indexes.MOVIES_COLLECTION);
+            assertSchemaObject(db, "index", Indexes.MOVIE_GENRES_TMDBID);
+            assertSchemaObject(db, "table", Tables.GENRES);
+            assertSchemaObject(db, "table", Tables.MOVIE_GENRES);
+            assertSchemaObject(db, "table", Tables.TMDB_LISTS);
+            assertSchemaObject(db, "table", Tables.TMDB_LIST_MOVIES);
+
+            // existing movies were added to the search table
+            final Cursor search = db.rawQuery("SELECT docid FROM " + Tables.MOVIES_SEARCH
+                    + " WHERE " + Tables.MOVIES_SEARCH + " MATCH ?", new String[] {
+                "matrix"
+            });
+            try {
+                assertEquals(1, search.getCount());
+            } finally {
+                search.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testUpgradedDatabaseAcceptsNewMovies() {
+        createOriginalDatabase();
+
+        final DatabaseHelper helper = new DatabaseHelper(mContext);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            final ContentValues values = new ContentValues();
+            values.put(Movies.TMDBID, "680");
+            values.put(Movies.TITLE, "Pulp Fiction");
+            values.put(Movies.FINGERPRINT, "abc");
+            assertTrue(db.insert(Tables.MOVIES, null, values) != -1);
+
+            final Cursor search = db.rawQuery("SELECT docid FROM " + Tables.MOVIES_SEARCH
+                    + " WHERE " + Tables.MOVIES_SEARCH + " MATCH ?", new String[] {
+                "pulp"
+            });
+            try {
+                assertEquals(1, search.getCount());
+            } finally {
+                search.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Creates a database as the first version left it, with two movies.
+     */
+    private void createOriginalDatabase() {
+        final SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+        try {
+            db.execSQL(CREATE_MOVIES_TABLE_V1);
+            db.execSQL("INSERT INTO movies (movie_title,movie_tmdbid,movie_tagline,"
+                    + "movie_watched,movie_inwatchlist,movie_incollecetion) VALUES "
+                    + "('Fight Club','550','Mischief. Mayhem. Soap.',1,0,1);");
+            db.execSQL("INSERT INTO movies (movie_title,movie_tmdbid,movie_tagline,"
+                    + "movie_watched,movie_inwatchlist,movie_incollecetion) VALUES "
+                    + "('The Matrix','603','Welcome to the Real World.',0,1,0);");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void assertSchemaObject(SQLiteDatabase db, String type, String name) {
+        final Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type=? AND name=?",
+                new String[] {
+                        type, name
+                });
+        try {
+            assertEquals(type + " " + name + " missing", 1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Queries a page of movies over and over while a sync writes movies in
+ * chunks, and reports how long the queries took.
+ */
+public class MoviesProviderContentionTest extends MoviesProviderTestCase {
+
+    private static final String TAG = "MoviesProviderContentionTest";
+
+    private static final int CHUNK_COUNT = 20;
+
+    private static final int CHUNK_SIZE = 100;
+
+    private static final String[] PAGE_PROJECTION = new String[] {
+            Movies._ID, Movies.TITLE
+    };
+
+    public void testReadersDoNotWaitForWholeSync() throws InterruptedException {
+        // something to read from the start
+        getMockContentResolver().bulkInsert(Movies.CONTENT_URI_UPSERT, buildChunk(0));
+
+        final long[] writeDuration = new long[1];
+        final Throwable[] writeError = new Throwable[1];
+        final Thread writer = new Thread("sync") {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    for (int i = 1; i <= CHUNK_COUNT; i++) {
+                        getMockContentResolver().bulkInsert(Movies.CONTENT_URI_UPSERT,
+                                buildChunk(i));
+                    }
+                } catch (Throwable e) {
+                    writeError[0] = e;
+                }
+                writeDuration[0] = SystemClock.elapsedRealtime() - start;
+            }
+        };
+
+        final ArrayList<Long> latencies = new ArrayList<Long>();
+        writer.start();
+        while (writer.isAlive()) {
+            final long start = SystemClock.elapsedRealtime();
+            final Cursor page = getMockContentResolver().query(
+                    Movies.buildPageUri(50, null, 0), PAGE_PROJECTION, null, null, null);
+            // fills the window, which actually runs the query
+            assertEquals(50, page.getCount());
+            page.close();
+            latencies.add(SystemClock.elapsedRealtime() - start);
+        }
+        writer.join();
+
+        assertNull(writeError[0]);
+        Collections.sort(latencies);
+        final long median = latencies.get(latencies.size() / 2);
+        final long max = latencies.get(latencies.size() - 1);
+        Log.i(TAG, latencies.size() + " reads during a " + writeDuration[0]
+                + " ms sync, median " + median + " ms, max " + max + " ms");
+
+        // readers got in between the chunks instead of waiting until the
+        // whole sync was written
+        assertTrue("No read finished during the sync", latencies.size() > 1);
+        assertTrue("A read waited for the whole sync", max < writeDuration[0]);
+    }
+
+    private static ContentValues[] buildChunk(int chunk) {
+        final ContentValues[] movies = new ContentValues[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            final int tmdbId = chunk * CHUNK_SIZE + i;
+            final ContentValues values = new ContentValues();
+            values.put(Movies.TMDBID, String.valueOf(tmdbId));
+            values.put(Movies.TITLE, "Movie " + tmdbId);
+            values.put(Movies.OVERVIEW, "The overview of movie " + tmdbId);
+            movies[i] = values;
+        }
+        return movies;
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that writing many movies at once notifies observers of the movies
+ * once, instead of once per movie.
+ */
+public class MoviesProviderNotificationTest extends MoviesProviderTestCase {
+
+    private static final int OPERATION_COUNT = 500;
+
+    public void testBatchOfInsertsNotifiesOnce() throws Exception {
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            batch.add(ContentProviderOperation.newInsert(Movies.CONTENT_URI)
+                    .withValues(buildMovie(i)).build());
+        }
+
+        getMockContentResolver().applyBatch(MoviesContract.CONTENT_AUTHORITY, batch);
+
+        assertEquals(OPERATION_COUNT, countMovies());
+        assertEquals(1, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testBatchOfUpdatesNotifiesOnce() throws Exception {
+        getMockContentResolver().bulkInsert(Movies.CONTENT_URI, buildMovies());
+        resetChangeCounts();
+
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            batch.add(ContentProviderOperation.newUpdate(Movies.CONTENT_URI)
+                    .withSelection(Movies.TMDBID + "=?", new String[] {
+                        String.valueOf(i)
+                    }).withValue(Movies.WATCHED, true).build());
+        }
+        getMockContentResolver().applyBatch(MoviesContract.CONTENT_AUTHORITY, batch);
+
+        assertEquals(1, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testFailedBatchDoesNotNotify() {
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        batch.add(ContentProviderOperation.newInsert(Movies.CONTENT_URI)
+                .withValues(buildMovie(0)).build());
+        // the title is required
+        final ContentValues untitled = buildMovie(1);
+        untitled.remove(Movies.TITLE);
+        batch.add(ContentProviderOperation.newInsert(Movies.CONTENT_URI).withValues(untitled)
+                .build());
+
+        try {
+            getMockContentResolver().applyBatch(MoviesContract.CONTENT_AUTHORITY, batch);
+            fail("Batch inserting an untitled movie succeeded");
+        } catch (Exception e) {
+            // expected
+        }
+
+        assertEquals(0, countMovies());
+        assertEquals(0, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testBulkInsertNotifiesOnce() {
+        getMockContentResolver().bulkInsert(Movies.CONTENT_URI, buildMovies());
+
+        assertEquals(OPERATION_COUNT, countMovies());
+        assertEquals(1, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testBulkUpsertNotifiesOnce() {
+        getMockContentResolver().bulkInsert(Movies.CONTENT_URI_UPSERT, buildMovies());
+        getMockContentResolver().bulkInsert(Movies.CONTENT_URI_UPSERT, buildMovies());
+
+        assertEquals(OPERATION_COUNT, countMovies());
+        assertEquals(2, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    /**
+     * Recording what a sync saw is invisible, only the commit notifies.
+     */
+    public void testSyncNotifiesOnCommit() throws Exception {
+        final ContentResolver resolver = getMockContentResolver();
+        resolver.bulkInsert(Movies.CONTENT_URI, buildMovies());
+        resetChangeCounts();
+
+        final long generation = 1;
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            batch.add(ContentProviderOperation.newUpdate(Movies.buildSyncUri(generation))
+                    .withSelection(Movies.TMDBID + "=?", new String[] {
+                        String.valueOf(i)
+                    }).withValue(Movies.SYNC_FLAGS, Movies.SYNC_FLAG_WATCHLIST).build());
+        }
+        resolver.applyBatch(MoviesContract.CONTENT_AUTHORITY, batch);
+        assertEquals(0, getChangeCount(Movies.CONTENT_URI));
+
+        final int changed = resolver.update(Movies.buildSyncCommitUri(generation),
+                new ContentValues(), null, null);
+        assertEquals(OPERATION_COUNT, changed);
+        assertEquals(1, getChangeCount(Movies.CONTENT_URI));
+
+        final Cursor watchlist = resolver.query(Movies.CONTENT_URI, new String[] {
+                Movies._ID
+        }, Movies.INWATCHLIST + "=1", null, null);
+        try {
+            assertEquals(OPERATION_COUNT, watchlist.getCount());
+        } finally {
+            watchlist.close();
+        }
+    }
+
+    private int countMovies() {
+        final Cursor movies = getMockContentResolver().query(Movies.CONTENT_URI, new String[] {
+                Movies._ID
+        }, null, null, null);
+        try {
+            return movies.getCount();
+        } finally {
+            movies.close();
+        }
+    }
+
+    private static ContentValues[] buildMovies() {
+        final ContentValues[] movies = new ContentValues[OPERATION_COUNT];
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            movies[i] = buildMovie(i);
+        }
+        return movies;
+    }
+
+    private static ContentValues buildMovie(int tmdbId) {
+        final ContentValues values = new ContentValues();
+        values.put(Movies.TMDBID, String.valueOf(tmdbId));
+        values.put(Movies.TITLE, "Movie " + tmdbId);
+        return values;
+    }
+
+}
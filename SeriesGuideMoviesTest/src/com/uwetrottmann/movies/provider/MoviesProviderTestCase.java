@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link MoviesProvider} on a fresh database, like
+ * {@link android.test.ProviderTestCase2}, but records the change
+ * notifications it sends, which {@link MockContentResolver} drops.
+ */
+public abstract class MoviesProviderTestCase extends AndroidTestCase {
+
+    private NotificationRecordingResolver mResolver;
+
+    private IsolatedContext mProviderContext;
+
+    private MoviesProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new NotificationRecordingResolver();
+        final RenamingDelegatingContext targetContextWrapper = new RenamingDelegatingContext(
+                new MockContext(), getContext(), "test.");
+        mProviderContext = new IsolatedContext(mResolver, targetContextWrapper);
+        mProvider = new MoviesProvider();
+        mProvider.attachInfo(mProviderContext, null);
+        mResolver.addProvider(MoviesContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    public Context getMockContext() {
+        return mProviderContext;
+    }
+
+    public MockContentResolver getMockContentResolver() {
+        return mResolver;
+    }
+
+    public MoviesProvider getProvider() {
+        return mProvider;
+    }
+
+    /**
+     * Returns how often an observer of the given {@link Uri} and its
+     * descendants was notified since the last reset, the number of times a
+     * list showing it would query again.
+     */
+    public int getChangeCount(Uri observedUri) {
+        int count = 0;
+        for (Uri uri : mResolver.getNotifiedUris()) {
+            if (isDescendant(observedUri, uri)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the notifications sent so far.
+     */
+    public void resetChangeCounts() {
+        mResolver.clear();
+    }
+
+    private static boolean isDescendant(Uri parent, Uri uri) {
+        if (!parent.getAuthority().equals(uri.getAuthority())) {
+            return false;
+        }
+        final List<String> parentSegments = parent.getPathSegments();
+        final List<String> segments = uri.getPathSegments();
+        return segments.size() >= parentSegments.size()
+                && segments.subList(0, parentSegments.size()).equals(parentSegments);
+    }
+
+    private static class NotificationRecordingResolver extends MockContentResolver {
+
+        private final ArrayList<Uri> mNotifiedUris = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            synchronized (mNotifiedUris) {
+                mNotifiedUris.add(uri);
+            }
+        }
+
+        List<Uri> getNotifiedUris() {
+            synchronized (mNotifiedUris) {
+                return new ArrayList<Uri>(mNotifiedUris);
+            }
+        }
+
+        void clear() {
+            synchronized (mNotifiedUris) {
+                mNotifiedUris.clear();
+            }
+        }
+    }
+
+}
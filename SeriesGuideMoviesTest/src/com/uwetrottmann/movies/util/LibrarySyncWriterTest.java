@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.movies.util;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.uwetrottmann.movies.provider.MoviesContract.Movies;
+import com.uwetrottmann.movies.provider.MoviesProviderTestCase;
+import com.uwetrottmann.movies.util.TraktLibraryReader.LibraryList;
+
+/**
+ * Syncs a library of 500 movies and counts how often a list of movies would
+ * have to query again.
+ */
+public class LibrarySyncWriterTest extends MoviesProviderTestCase {
+
+    private static final int MOVIE_COUNT = 500;
+
+    /** Movies written per transaction by the writer */
+    private static final int CHUNK_SIZE = 100;
+
+    public void testFirstSyncNotifiesOncePerChunk() {
+        sync(MOVIE_COUNT);
+
+        assertEquals(MOVIE_COUNT, countMovies(Movies.INWATCHLIST + "=1"));
+        // one per written chunk, one for removing, one for the commit
+        assertEquals(MOVIE_COUNT / CHUNK_SIZE + 2, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testUnchangedSyncDoesNotWriteMovies() {
+        sync(MOVIE_COUNT);
+        resetChangeCounts();
+
+        sync(MOVIE_COUNT);
+
+        assertEquals(MOVIE_COUNT, countMovies(Movies.INWATCHLIST + "=1"));
+        // only removing and the commit are left
+        assertEquals(2, getChangeCount(Movies.CONTENT_URI));
+    }
+
+    public void testRemovedMoviesAreDeleted() {
+        sync(MOVIE_COUNT);
+
+        sync(MOVIE_COUNT / 2);
+
+        assertEquals(MOVIE_COUNT / 2, countMovies(null));
+    }
+
+    /**
+     * Syncs a watchlist of the given number of movies.
+     */
+    private void sync(int movieCount) {
+        final LibrarySyncWriter writer = new LibrarySyncWriter(getMockContext());
+        for (int i = 0; i < movieCount; i++) {
+            final ContentValues movie = new ContentValues();
+            movie.put(Movies.TMDBID, String.valueOf(i));
+            movie.put(Movies.TITLE, "Movie " + i);
+            movie.put(Movies.YEAR, "2012");
+            writer.add(LibraryList.WATCHLIST, movie);
+        }
+        writer.finish(true);
+    }
+
+    private int countMovies(String selection) {
+        final Cursor movies = getMockContentResolver().query(Movies.CONTENT_URI, new String[] {
+                Movies._ID
+        }, selection, null, null);
+        try {
+            return movies.getCount();
+        } finally {
+            movies.close();
+        }
+    }
+
+}
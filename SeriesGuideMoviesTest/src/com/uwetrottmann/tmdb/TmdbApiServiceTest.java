@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.uwetrottmann.tmdb;
+
+import com.google.myjson.JsonElement;
+import com.jakewharton.apibuilder.ApiException;
+import com.uwetrottmann.androidutils.HttpTransport;
+import com.uwetrottmann.androidutils.LocalHttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks API requests go through the shared {@link HttpTransport}.
+ */
+public class TmdbApiServiceTest extends TestCase {
+
+    private LocalHttpServer mServer;
+
+    private TmdbApiService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = LocalHttpServer.start();
+        mService = new TmdbApiService() {
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testGetGoesThroughTransport() {
+        final HttpTransport transport = HttpTransport.getInstance();
+        final int requests = transport.getRequestCount();
+        final int gzipResponses = transport.getGzipResponseCount();
+
+        final JsonElement movie = mService.get(mServer.getUrl("/json"));
+
+        assertEquals("Movie", movie.getAsJsonObject().get("title").getAsString());
+        assertEquals(requests + 1, transport.getRequestCount());
+        assertEquals(gzipResponses + 1, transport.getGzipResponseCount());
+    }
+
+    public void testErrorBodyIsReported() {
+        try {
+            mService.get(mServer.getUrl("/missing"));
+            fail("Missing resource returned");
+        } catch (ApiException e) {
+            assertEquals("not here", e.getMessage().trim());
+        }
+    }
+
+}